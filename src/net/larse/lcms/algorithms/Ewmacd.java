@@ -22,16 +22,13 @@
 package com.google.earthengine.examples.landsat;
 
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.earthengine.api.base.AlgorithmBase;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import org.apache.commons.lang3.ArrayUtils;
-import org.apache.commons.math.linear.Array2DRowRealMatrix;
-import org.apache.commons.math.linear.LUDecompositionImpl;
-import org.apache.commons.math.linear.RealMatrix;
 import org.apache.commons.math.stat.descriptive.moment.StandardDeviation;
-import org.apache.commons.math.stat.regression.OLSMultipleLinearRegression;
 
 import java.util.Arrays;
 
@@ -100,14 +97,53 @@ public final class Ewmacd {
   }
 
   private static final int DEFAULT_VALUE = -2222;
+
+  // The harmonic basis for the integer days of year: sin(h * rx) and
+  // cos(h * rx) with rx = day * 2 * PI / 365, for day = 0 to MAX_DAY and
+  // h = 1 to MAX_HARMONICS, at [day * MAX_HARMONICS + h - 1]. They are the
+  // values the per-pixel code would compute, so the design matrices are
+  // gathered from the tables instead; other days and harmonics fall back to
+  // Math.sin() and Math.cos().
+  private static final int MAX_DAY = 366;
+  private static final int MAX_HARMONICS = 8;
+  private static final double[] SIN_TABLE = new double[(MAX_DAY + 1) * MAX_HARMONICS];
+  private static final double[] COS_TABLE = new double[(MAX_DAY + 1) * MAX_HARMONICS];
+  static {
+    for (int day = 0; day <= MAX_DAY; day++) {
+      double rx = day * 2 * Math.PI / 365;
+      for (int h = 1; h <= MAX_HARMONICS; h++) {
+        SIN_TABLE[day * MAX_HARMONICS + h - 1] = Math.sin(h * rx);
+        COS_TABLE[day * MAX_HARMONICS + h - 1] = Math.cos(h * rx);
+      }
+    }
+  }
+  // Relative threshold under which a pivot of the Cholesky decomposition
+  // of the normal equations (see solveHarmonic()) is considered zero.
+  private static final double SINGULAR_PIVOT = 1e-10;
+
   private final Args args;
 
+  // Workspace of the harmonic fits: the terms of an observation (1, the
+  // sines and the cosines), the normal equations (the Gram matrix, row major,
+  // of which only the lower triangle is used, and its right hand side), and
+  // the coefficients.
+  private final int numTerms;
+  private final double[] terms;
+  private final double[] gram;
+  private final double[] rhs;
+  private final double[] betas;
+
   public Ewmacd() {
     this(new Args());
   }
 
   public Ewmacd(Args args) {
     this.args = args;
+    this.numTerms = 1 + args.sineHarmonicCount + args.cosineHarmonicCount;
+    this.terms = new double[numTerms];
+    this.gram = new double[numTerms * numTerms];
+    this.rhs = new double[numTerms];
+    this.betas = new double[numTerms];
   }
 
   /**
@@ -149,18 +185,19 @@ public final class Ewmacd {
       }
     }
 
-    double[] trainingX = Arrays.copyOfRange(x, trainingStart, trainingEnd + 1);
-    double[] trainingY = Arrays.copyOfRange(y, trainingStart, trainingEnd + 1);
-    double[] betas = getTrainingHarmonic(trainingX, trainingY);
+    // Without a harmonic model of the training period, nothing is marked.
+    if (!getTrainingHarmonic(x, y, trainingStart, trainingEnd + 1)) {
+      return adjustResult(results);
+    }
 
     // The following implements EWMA components
     // calculate fitted values for all the data points based on training coefficients.
-    RealMatrix all = constructHarmonicMatrix(x);
-    RealMatrix fitted = all.multiply(new Array2DRowRealMatrix(betas));
-
     // NG: Residuals probably works better as an double[].
     // YZ: Changed as suggested
-    double[] residuals = new Array2DRowRealMatrix(y).subtract(fitted).getColumnVector(0).toArray();
+    double[] residuals = new double[x.length];
+    for (int i = 0; i < x.length; i++) {
+      residuals[i] = y[i] - predictHarmonic(x[i]);
+    }
     //int trainingSize = trainingEnd-trainingStart+1;
     double[] trainingResiduals = ArrayUtils.subarray(residuals, trainingStart, trainingEnd+1);
 
@@ -211,7 +248,7 @@ public final class Ewmacd {
     // Updating historicalMean
     DoubleArrayList filteredTrainingResiduals = new DoubleArrayList();
     for (int i = 0; i < trainingResiduals.length; i++) {
-      if (trainingY[i] > args.vegetationThreshold
+      if (y[trainingStart + i] > args.vegetationThreshold
           && Math.abs(trainingResiduals[i]) < ucl0[i]) {
         filteredTrainingResiduals.add(trainingResiduals[i]);
       }
@@ -331,88 +368,168 @@ public final class Ewmacd {
   }
 
   /**
-   * Derive harmonic coefficients using training data
-   * NG: Why does this function only use exactly 2 harmonics and not harmonicCount?
-   * YZ: it is using harmonicCount in the constructHarmonicMatrix.
+   * Derive harmonic coefficients using training data, the observations from
+   * start (inclusive) to end (exclusive), into betas. Returns false if there
+   * are not enough observations for the fits, or they are rank deficient.
+   * The model has a constant, sineHarmonicCount sines and
+   * cosineHarmonicCount cosines (see setHarmonicTerms()).
    */
-  private double[] getTrainingHarmonic(double[] trainingX, double[] trainingY) {
-    //construct training data
-    Array2DRowRealMatrix matrix = constructHarmonicMatrix(trainingX);
-
-    //make sure the design matrix has sufficient rank
-    if (trainingX.length < (1 + args.sineHarmonicCount + args.cosineHarmonicCount) && isSingular(matrix)) {
-      return null;
+  @VisibleForTesting
+  boolean getTrainingHarmonic(double[] x, double[] y, int start, int end) {
+    //first pass of harmonic function, on all the training data
+    if (!fitHarmonic(x, y, start, end, Double.POSITIVE_INFINITY)) {
+      return false;
     }
 
-    //first pass of harmonic function
-    // NG: Why is this cutting off the first column?
-    // YZ: I will verify this with.
-    OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
-    ols.newSampleData(trainingY,
-        matrix.getSubMatrix(
-            0, trainingX.length - 1,
-            1, matrix.getColumnDimension() - 1)
-            .getData());
-
     //check residual from first pass of harmonic funciton
-    double[] residuals = ols.estimateResiduals();
+    double mean = 0;
+    for (int i = start; i < end; i++) {
+      mean += y[i] - predictHarmonic(x[i]);
+    }
+    mean /= end - start;
+    double sumSquares = 0;
+    for (int i = start; i < end; i++) {
+      double d = y[i] - predictHarmonic(x[i]) - mean;
+      sumSquares += d * d;
+    }
     // NG: Folded together.
-    double limit = new StandardDeviation().evaluate(residuals) * args.xBarLimit1;
-
-    //exclude observations with large residules: xBarLimit1 * sd
-    int validCount = 0;
-    DoubleArrayList samples2 = new DoubleArrayList();
-    for (int i = 0; i < residuals.length; i++) {
-      if (Math.abs(residuals[i]) <= limit) {
-        samples2.add(trainingY[i]);
-        double rx = trainingX[i] * 2 * Math.PI / 365;
-
-        for (int h = 1; h <= args.sineHarmonicCount; h++) {
-          samples2.add(Math.sin(h*rx));
+    int n = end - start;
+    double limit = (n > 1 ? Math.sqrt(sumSquares / (n - 1)) : 0) * args.xBarLimit1;
+
+    //refit the model, excluding observations with large residules: xBarLimit1 * sd
+    // (fitHarmonic() fails if fewer observations than terms are left)
+    return fitHarmonic(x, y, start, end, limit);
+  }
+
+  /**
+   * Returns the coefficients of the last harmonic fit: the constant, the
+   * sines and then the cosines.
+   */
+  @VisibleForTesting
+  double[] getBetas() {
+    return betas.clone();
+  }
+
+  /**
+   * Fits the harmonic model to the observations from start to end whose
+   * residual from the current betas is at most limit in absolute value, and
+   * sets betas to its coefficients. The normal equations are accumulated
+   * one observation at a time, so nothing is allocated. Returns false if
+   * there are fewer observations than terms, or they are rank deficient.
+   */
+  private boolean fitHarmonic(double[] x, double[] y, int start, int end, double limit) {
+    Arrays.fill(gram, 0.0);
+    Arrays.fill(rhs, 0.0);
+    int count = 0;
+    for (int i = start; i < end; i++) {
+      if (limit != Double.POSITIVE_INFINITY
+          && Math.abs(y[i] - predictHarmonic(x[i])) > limit) {
+        continue;
+      }
+      setHarmonicTerms(x[i]);
+      for (int j = 0; j < numTerms; j++) {
+        double t = terms[j];
+        rhs[j] += t * y[i];
+        for (int k = 0; k <= j; k++) {
+          gram[j * numTerms + k] += t * terms[k];
         }
-        for (int h = 1; h <= args.cosineHarmonicCount; h++) {
-          samples2.add(Math.cos(h*rx));
+      }
+      count++;
+    }
+    return count >= numTerms && solveHarmonic();
+  }
+
+  /**
+   * Solves the normal equations in gram and rhs into betas, with a Cholesky
+   * decomposition that overwrites the lower triangle of gram by its factor.
+   * Returns false if a pivot is not larger than SINGULAR_PIVOT times the
+   * diagonal element it comes from, i.e. the fit is rank deficient.
+   */
+  private boolean solveHarmonic() {
+    for (int j = 0; j < numTerms; j++) {
+      int row = j * numTerms;
+      for (int k = 0; k <= j; k++) {
+        double sum = gram[row + k];
+        for (int l = 0; l < k; l++) {
+          sum -= gram[row + l] * gram[k * numTerms + l];
+        }
+        if (k < j) {
+          gram[row + k] = sum / gram[k * numTerms + k];
+        } else {
+          if (sum <= SINGULAR_PIVOT * gram[row + j]) {
+            return false;
+          }
+          gram[row + j] = Math.sqrt(sum);
         }
-        validCount++;
       }
     }
 
-    //refit the model using filtered training data
-    // NG: Shouldn't we test how many are left?
-    // YZ: yes
-    if (validCount < (1 + args.sineHarmonicCount + args.cosineHarmonicCount)) {
-      return null;
+    // forward and backward substitutions.
+    for (int j = 0; j < numTerms; j++) {
+      double sum = rhs[j];
+      for (int k = 0; k < j; k++) {
+        sum -= gram[j * numTerms + k] * betas[k];
+      }
+      betas[j] = sum / gram[j * numTerms + j];
     }
-    ols.newSampleData(samples2.toDoubleArray(), validCount, args.sineHarmonicCount + args.cosineHarmonicCount);
-    return ols.estimateRegressionParameters();
+    for (int j = numTerms - 1; j >= 0; j--) {
+      double sum = betas[j];
+      for (int k = j + 1; k < numTerms; k++) {
+        sum -= gram[k * numTerms + j] * betas[k];
+      }
+      betas[j] = sum / gram[j * numTerms + j];
+    }
+    return true;
   }
 
-  // NG: If getTrainingHarmonic really wants to cut off the constant, maybe
-  // better to make this function not add it with a arg.
-  // e.g.: (double x[], boolean constantTerm)
-  protected Array2DRowRealMatrix constructHarmonicMatrix(double[] x) {
-    Array2DRowRealMatrix matrix = new Array2DRowRealMatrix(x.length, args.sineHarmonicCount + args.cosineHarmonicCount + 1);
+  /**
+   * Sets terms to the terms of the harmonic model for the given day of
+   * year: 1, the sines and then the cosines of the harmonics.
+   */
+  private void setHarmonicTerms(double x) {
+    terms[0] = 1;
+    for (int h = 0; h < args.sineHarmonicCount; h++) {
+      terms[h + 1] = harmonicSin(x, h + 1);
+    }
+    for (int h = 0; h < args.cosineHarmonicCount; h++) {
+      terms[args.sineHarmonicCount + h + 1] = harmonicCos(x, h + 1);
+    }
+  }
 
-    for (int i = 0; i < x.length; i++) {
-      // NG: use setEntry instead.
-      matrix.setEntry(i, 0, 1);
-      double rx = x[i] * 2 * Math.PI / 365;
-      //now add the harmonic terms
-      for (int h = 0; h < args.sineHarmonicCount; h++) {
-        matrix.setEntry(i, h + 1, Math.sin((h + 1) * rx));
-      }
-      for (int h = 0; h < args.cosineHarmonicCount; h++) {
-        matrix.setEntry(i, args.sineHarmonicCount + h + 1, Math.cos((h + 1) * rx));
-      }
+  /**
+   * Returns the value of the harmonic model with coefficients betas for the
+   * given day of year.
+   */
+  private double predictHarmonic(double x) {
+    setHarmonicTerms(x);
+    double value = 0;
+    for (int j = 0; j < numTerms; j++) {
+      value += terms[j] * betas[j];
     }
-    return matrix;
+    return value;
   }
 
-  protected boolean isSingular(Array2DRowRealMatrix matrix) {
-    double singularThreshold = 0.001;
-    RealMatrix prod = matrix.transpose().multiply(matrix);
-    double determinant = new LUDecompositionImpl(prod).getDeterminant();
+  /**
+   * Returns sin(h * x * 2 * PI / 365), from SIN_TABLE if x is an integer day
+   * of year.
+   */
+  static double harmonicSin(double x, int h) {
+    int day = (int) x;
+    if (day == x && day >= 0 && day <= MAX_DAY && h <= MAX_HARMONICS) {
+      return SIN_TABLE[day * MAX_HARMONICS + h - 1];
+    }
+    return Math.sin(h * (x * 2 * Math.PI / 365));
+  }
 
-    return Math.abs(determinant) <= singularThreshold;
+  /**
+   * Returns cos(h * x * 2 * PI / 365), from COS_TABLE if x is an integer day
+   * of year.
+   */
+  static double harmonicCos(double x, int h) {
+    int day = (int) x;
+    if (day == x && day >= 0 && day <= MAX_DAY && h <= MAX_HARMONICS) {
+      return COS_TABLE[day * MAX_HARMONICS + h - 1];
+    }
+    return Math.cos(h * (x * 2 * Math.PI / 365));
   }
 }
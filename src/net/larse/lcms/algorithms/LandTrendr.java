@@ -22,8 +22,10 @@
 package net.larse.lcms.algorithms;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.primitives.Doubles;
+import com.google.earthengine.api.task.SizeOf;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 
@@ -31,16 +33,15 @@ import org.apache.commons.math.FunctionEvaluationException;
 import org.apache.commons.math.optimization.fitting.CurveFitter;
 import org.apache.commons.math.optimization.fitting.ParametricRealFunction;
 import org.apache.commons.math.optimization.general.LevenbergMarquardtOptimizer;
-import org.ejml.data.DenseMatrix64F;
 
 import riso.numerical.SpecialMath;
 
+import java.io.Serializable;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import net.larse.lcms.helper.EEArray;
-import net.larse.lcms.helper.LinearLeastSquares;
 import net.larse.lcms.helper.PixelType;
 
 /**
@@ -57,6 +58,315 @@ import net.larse.lcms.helper.PixelType;
 public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
   private static final long serialVersionUID = 1L;
 
+  /**
+   * The time axis of a series of observations, with all the quantities that
+   * depend only on the acquisition years precomputed. Every pixel of a tile
+   * usually has the same years, so one TimeAxis can be built per tile and
+   * passed to LandTrendrSolver.getResult() for each of its pixels.
+   */
+  public static final class TimeAxis {
+    // the acquisition years, as given.
+    public final double[] years;
+    // the years relative to the first one; this is the x used by the solver.
+    public final double[] times;
+    // the smallest and largest time.
+    public final double minTime;
+    public final double maxTime;
+    // prefix sums of the times and of their squares: sumX[i] is the sum of
+    // times[0..i-1].
+    private final double[] sumX;
+    private final double[] sumXX;
+
+    /**
+     * Creates the time axis of observations acquired at the given years,
+     * which must be sorted.
+     */
+    public TimeAxis(double[] years) {
+      this(years, years.length == 0 ? 0.0 : years[0]);
+    }
+
+    /**
+     * Creates a time axis whose times are years - origin. The solver methods
+     * that take a plain x array use an origin of 0, so x is used as is.
+     */
+    private TimeAxis(double[] years, double origin) {
+      int n = years.length;
+      this.years = years;
+      this.times = new double[n];
+      this.sumX = new double[n + 1];
+      this.sumXX = new double[n + 1];
+
+      double min = Double.POSITIVE_INFINITY;
+      double max = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < n; i++) {
+        double t = years[i] - origin;
+        times[i] = t;
+        sumX[i + 1] = sumX[i] + t;
+        sumXX[i + 1] = sumXX[i] + t * t;
+        min = Math.min(min, t);
+        max = Math.max(max, t);
+      }
+      this.minTime = min;
+      this.maxTime = max;
+    }
+
+    /**
+     * Wraps x values that are already relative times.
+     */
+    static TimeAxis ofTimes(double[] x) {
+      return new TimeAxis(x, 0.0);
+    }
+
+    public int size() {
+      return times.length;
+    }
+
+    /**
+     * Returns maxTime - minTime, the range used to normalize the angles.
+     */
+    public double range() {
+      return maxTime - minTime;
+    }
+
+    /**
+     * Returns the sum of the times between begin and end (inclusive).
+     */
+    public double sumX(int begin, int end) {
+      return sumX[end + 1] - sumX[begin];
+    }
+
+    /**
+     * Returns the sum of the squared times between begin and end (inclusive).
+     */
+    public double sumXX(int begin, int end) {
+      return sumXX[end + 1] - sumXX[begin];
+    }
+
+    /**
+     * Returns the sum of (times[i] - times[begin])^2 for i between begin and
+     * end (inclusive), the x moment of a regression anchored at begin.
+     */
+    public double sumAnchoredXX(int begin, int end) {
+      double anchor = times[begin];
+      return sumXX(begin, end) - 2.0 * anchor * sumX(begin, end)
+          + (end - begin + 1) * anchor * anchor;
+    }
+
+    /**
+     * Returns true if this axis was built for the given years, so it can be
+     * reused for a pixel with those years.
+     */
+    public boolean hasYears(double[] otherYears) {
+      return Arrays.equals(years, otherYears);
+    }
+  }
+
+  /**
+   * The part of a pixel's LandTrendr model that is kept between runs, so the
+   * model can be updated when a new observation is appended instead of being
+   * fitted again (see LandTrendrSolver.updateState()). Only the vertices, the
+   * segments, the smoothed series and a few running sums are kept.
+   */
+  public static final class ModelState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // the number of observations the model was fitted to.
+    private int numObs;
+    // the vertices of the model, and the slope and intercept (the fitted
+    // value at the first vertex) of each segment.
+    private int[] vertices;
+    private double[] slopes;
+    private double[] intercepts;
+    // the f-statistic and the p-value of the model.
+    private double fStat;
+    private double pValue;
+    // whether the segments were fitted by fitPaths(), rather than by the
+    // Levenberg-Marquardt method, which fits all of them together.
+    private boolean pathFit;
+    // the smoothed values of the series.
+    private double[] values;
+    // sums over all the observations of the raw values (for the mean), and
+    // of the smoothed values and their squares.
+    private double sumRaw;
+    private double sumValues;
+    private double sumValuesSq;
+    // the sum of squared residuals of all the segments but the last one.
+    private double residualOthers;
+    // sums over the last segment, with x relative to its first vertex.
+    private double lastCount;
+    private double lastSumX;
+    private double lastSumXX;
+    private double lastSumY;
+    private double lastSumXY;
+    private double lastSumYY;
+
+    public int getNumObservations() {
+      return numObs;
+    }
+
+    public int[] getVertices() {
+      return vertices.clone();
+    }
+
+    public double[] getSlopes() {
+      return slopes.clone();
+    }
+
+    public double[] getIntercepts() {
+      return intercepts.clone();
+    }
+
+    public double getPValue() {
+      return pValue;
+    }
+
+    public double getFStat() {
+      return fStat;
+    }
+  }
+
+  /**
+   * Derives change maps from the segments of LandTrendr models: the greatest
+   * disturbance, the most recent disturbance and the longest recovery of each
+   * pixel. As in LandTrendrSolver, segments with a positive slope are
+   * disturbances and segments with a negative slope are recoveries.
+   *
+   * <p>The maps are written as integers into a band sequential cube, band b
+   * of a pixel being at output[b * numPixels + pixel]. There are NUM_BANDS
+   * bands: for each of GREATEST_DISTURBANCE, MOST_RECENT_DISTURBANCE and
+   * LONGEST_RECOVERY (in that order) the year of onset, the magnitude, the
+   * duration in years, the value before the change and the rate of change
+   * per year. Magnitudes, values and rates are multiplied by a scale before
+   * being rounded; magnitudes and rates of recoveries are absolute values. A
+   * pixel without a change of some kind gets zeros in its bands.
+   */
+  public static final class ChangeMaps {
+    public static final int GREATEST_DISTURBANCE = 0;
+    public static final int MOST_RECENT_DISTURBANCE = 1;
+    public static final int LONGEST_RECOVERY = 2;
+
+    public static final int YEAR = 0;
+    public static final int MAGNITUDE = 1;
+    public static final int DURATION = 2;
+    public static final int PRE_VALUE = 3;
+    public static final int RATE = 4;
+
+    public static final int BANDS_PER_MAP = 5;
+    public static final int NUM_BANDS = 3 * BANDS_PER_MAP;
+
+    private final double minMagnitude;
+    private final double minDuration;
+    private final double scale;
+
+    /**
+     * @param minMagnitude segments whose absolute change is smaller are
+     * ignored.
+     * @param minDuration segments shorter than this (in years) are ignored.
+     * @param scale the factor applied to magnitudes, values and rates before
+     * they are rounded to integers.
+     */
+    public ChangeMaps(double minMagnitude, double minDuration, double scale) {
+      this.minMagnitude = minMagnitude;
+      this.minDuration = minDuration;
+      this.scale = scale;
+    }
+
+    /**
+     * Returns the band of the given attribute of the given map.
+     */
+    public static int band(int map, int attribute) {
+      return map * BANDS_PER_MAP + attribute;
+    }
+
+    /**
+     * Writes the change maps of one pixel, given its model and time axis.
+     */
+    public void write(LandTrendrSolver.Model model,
+        TimeAxis axis,
+        int[] output,
+        int pixel,
+        int numPixels) {
+      Preconditions.checkArgument(pixel >= 0 && pixel < numPixels
+          && output.length >= NUM_BANDS * numPixels);
+      double[] x = axis.times;
+      List<Integer> vertices = model.vertices;
+
+      int greatest = -1;
+      int mostRecent = -1;
+      int longestRecovery = -1;
+      double greatestMagnitude = 0.0;
+      double longestDuration = 0.0;
+      for (int i = 0; i < vertices.size() - 1; i++) {
+        int begin = vertices.get(i);
+        int end = vertices.get(i + 1);
+        double magnitude = model.slopes.get(i) * (x[end] - x[begin]);
+        double duration = axis.years[end] - axis.years[begin];
+        if (Math.abs(magnitude) < minMagnitude || duration < minDuration) {
+          continue;
+        }
+
+        if (magnitude > 0.0) {
+          if (greatest == -1 || magnitude > greatestMagnitude) {
+            greatest = i;
+            greatestMagnitude = magnitude;
+          }
+          // the segments are sorted in time, so the last one is the most
+          // recent.
+          mostRecent = i;
+        } else if (magnitude < 0.0) {
+          if (longestRecovery == -1 || duration > longestDuration) {
+            longestRecovery = i;
+            longestDuration = duration;
+          }
+        }
+      }
+
+      writeSegment(model, axis, greatest, GREATEST_DISTURBANCE, output, pixel,
+          numPixels);
+      writeSegment(model, axis, mostRecent, MOST_RECENT_DISTURBANCE, output,
+          pixel, numPixels);
+      writeSegment(model, axis, longestRecovery, LONGEST_RECOVERY, output,
+          pixel, numPixels);
+    }
+
+    /**
+     * Writes the bands of one map for the given segment of the model, or
+     * zeros if the segment is -1.
+     */
+    private void writeSegment(LandTrendrSolver.Model model,
+        TimeAxis axis,
+        int segment,
+        int map,
+        int[] output,
+        int pixel,
+        int numPixels) {
+      int year = 0;
+      int magnitude = 0;
+      int duration = 0;
+      int preValue = 0;
+      int rate = 0;
+      if (segment != -1) {
+        int begin = model.vertices.get(segment);
+        int end = model.vertices.get(segment + 1);
+        double slope = model.slopes.get(segment);
+        double change = slope * (axis.times[end] - axis.times[begin]);
+        double years = axis.years[end] - axis.years[begin];
+
+        // the change is first observed the year after the starting vertex.
+        year = (int) axis.years[begin + 1];
+        magnitude = (int) Math.round(Math.abs(change) * scale);
+        duration = (int) Math.round(years);
+        preValue = (int) Math.round(model.intercepts.get(segment) * scale);
+        rate = (int) Math.round(Math.abs(change) / years * scale);
+      }
+      output[band(map, YEAR) * numPixels + pixel] = year;
+      output[band(map, MAGNITUDE) * numPixels + pixel] = magnitude;
+      output[band(map, DURATION) * numPixels + pixel] = duration;
+      output[band(map, PRE_VALUE) * numPixels + pixel] = preValue;
+      output[band(map, RATE) * numPixels + pixel] = rate;
+    }
+  }
+
   @VisibleForTesting
   public final static class LandTrendrSolver {
     private final double spikeThreshold;
@@ -67,6 +377,42 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
     private final double pvalThreshold;
     private final double bestModelProportion;
 
+    // Workspace used by fitPaths() and fitToVertices(): the anchor point of
+    // each band, and the vertices, slopes and intercepts of all the bands.
+    private double[] pathAnchors = new double[0];
+    private int[] pathVertices = new int[0];
+    private double[] pathSlopes = new double[0];
+    private double[] pathIntercepts = new double[0];
+
+    // Workspace used by desawtooth(): a heap of the correction proportions of
+    // the interior observations.
+    private final IndexedHeap spikeHeap = new IndexedHeap(true);
+
+    // Workspace used by updateState(): the smoothed values of the series.
+    private double[] stateValues = new double[0];
+
+    // Workspace used by cullByAngle(): the rescaled y values, the vertices and
+    // their links, and a heap of the angles of the vertices.
+    private final IndexedHeap angleHeap = new IndexedHeap(false);
+    private double[] cullY = new double[0];
+    private int[] cullVertices = new int[0];
+    private int[] cullPrev = new int[0];
+    private int[] cullNext = new int[0];
+
+    // Workspace used by identifyBestModel(): one row per candidate model with
+    // its vertices, slopes, intercepts and fitted values, its statistics, and
+    // the vertices still in use while the candidates are generated.
+    private final double[][] modelBand = new double[1][];
+    private int[] modelVertices = new int[0];
+    private int[] modelNumVertices = new int[0];
+    private double[] modelSlopes = new double[0];
+    private double[] modelIntercepts = new double[0];
+    private double[] modelFitted = new double[0];
+    private double[] modelPValues = new double[0];
+    private double[] modelFStats = new double[0];
+    private double[] modelRanges = new double[0];
+    private int[] modelWorkVertices = new int[0];
+
     //private final int numImages;
 
     //YANG: we are not using the ImageValues but will use csv file
@@ -130,33 +476,131 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
      *  and another model is fitted; this process is repeated until there are
      *  only two vertices in the model, which is the simplest possible.
      */
-    //public EEArray getResult(int x, int y) {
-    //public EEArray getResult(double[] x, double[] y) {
     public List<Integer> getResult(DoubleArrayList x, DoubleArrayList y) {
+      return getResult(new TimeAxis(x.toDoubleArray()), y.toDoubleArray());
+    }
+
+    /**
+     * Same as above, for a pixel whose observations were acquired at the
+     * years of the given time axis. The axis is not modified, so the same
+     * one can be used for all the pixels of a tile.
+     */
+    public List<Integer> getResult(TimeAxis axis, double[] y) {
+      return fitModel(axis, y).vertices;
+    }
+
+    /**
+     * Returns the 4 x nObs array built by toArray(): the years, the raw
+     * values, the fitted values and the vertex flags of the pixel.
+     */
+    public EEArray getResultArray(TimeAxis axis, double[] y) {
+      Model model = fitModel(axis, y);
+      return toArray(axis.years, y, model.yFitted, model.vertices);
+    }
+
+    /**
+     * Returns the number of bands that the packed getResult() writes for a
+     * pixel with nObs observations.
+     */
+    public int getNumOutputBands(int nObs) {
+      return 2 * nObs + maxSegments + 3;
+    }
+
+    /**
+     * Returns an (approximate) upper bound on the heap used by this solver to
+     * fit a pixel with nObs observations: the workspace it keeps between
+     * pixels plus what it allocates for each pixel. The Levenberg-Marquardt
+     * fallback is not included.
+     */
+    public long heapSize(int nObs) {
+      long numVertices = maxSegments + 1;
+      long numPotential = numVertices + vertexCountOvershoot;
+      long numModels = maxSegments;
+      long doubles = SizeOf.array(SizeOf.DOUBLE * nObs);
+      long ints = SizeOf.array(SizeOf.INT * nObs);
+      return 3 * doubles                                // values, fitted, cull
+             + 2 * (doubles + 2 * ints)                 // the two heaps
+             + 3 * SizeOf.array(SizeOf.INT * numPotential)
+             + SizeOf.array(SizeOf.DOUBLE * numModels * nObs)
+             + SizeOf.array(SizeOf.INT * numModels * numVertices)
+             + 2 * SizeOf.array(SizeOf.DOUBLE * numModels * numModels)
+             + 3 * SizeOf.array(SizeOf.DOUBLE * numModels)
+             + SizeOf.array(SizeOf.INT * numModels)
+             + 2 * SizeOf.array(SizeOf.INT * numVertices)
+             + 3 * SizeOf.array(SizeOf.DOUBLE * numVertices);
+    }
+
+    /**
+     * Packed output mode: fits the model of one pixel of a tile and writes
+     * everything needed downstream into a caller-provided cube, so the
+     * model never has to be fitted again. The cube is band sequential, band
+     * b of the pixel being at output[b * numPixels + pixel], and has
+     * getNumOutputBands(nObs) bands:
+     * <ul>
+     * <li>[0, nObs): the fitted values;
+     * <li>[nObs, 2 * nObs): 1 if the observation is a vertex, 0 otherwise;
+     * <li>[2 * nObs, 2 * nObs + maxSegments): the slope of each segment, per
+     *     year, NaN for the segments the model does not have;
+     * <li>then the p-value, the f-statistic and the RMSE of the model.
+     * </ul>
+     */
+    public void getResult(TimeAxis axis,
+        double[] y,
+        double[] output,
+        int pixel,
+        int numPixels) {
+      int nObs = y.length;
+      Preconditions.checkArgument(pixel >= 0 && pixel < numPixels
+          && output.length >= getNumOutputBands(nObs) * numPixels);
+      Model model = fitModel(axis, y);
+
+      int band = 0;
+      for (int i = 0; i < nObs; i++) {
+        output[band++ * numPixels + pixel] = model.yFitted[i];
+      }
+      for (int i = 0; i < nObs; i++) {
+        output[(band + i) * numPixels + pixel] = 0.0;
+      }
+      for (int i = 0; i < model.vertices.size(); i++) {
+        output[(band + model.vertices.get(i)) * numPixels + pixel] = 1.0;
+      }
+      band += nObs;
+      for (int i = 0; i < maxSegments; i++) {
+        output[band++ * numPixels + pixel] =
+            i < model.slopes.size() ? model.slopes.get(i) : Double.NaN;
+      }
+      output[band++ * numPixels + pixel] = model.pValue;
+      output[band++ * numPixels + pixel] = model.fStat;
+      output[band * numPixels + pixel] = model.rmse();
+    }
+
+    /**
+     * Fits the model of one pixel of a tile and writes its change maps (see
+     * ChangeMaps) into the output cube. Only the model is used, so the fitted
+     * series is never materialized in the output.
+     */
+    public void getChangeMaps(TimeAxis axis,
+        double[] y,
+        ChangeMaps changeMaps,
+        int[] output,
+        int pixel,
+        int numPixels) {
+      changeMaps.write(fitModel(axis, y), axis, output, pixel, numPixels);
+    }
+
+    /**
+     * Runs all the steps of the algorithm described in getResult() on one
+     * pixel and returns the chosen model. The given values are not modified.
+     */
+    public Model fitModel(TimeAxis axis, double[] y) {
+      Preconditions.checkArgument(axis.size() == y.length);
       Model model;
-      double[] yearsArray;
-      double[] rawValuesArray;
 
       //Yang: mask MemoryScope usage
       //try (MemoryScope scope = MemoryScope.newTransient()) {
       {
-        DoubleArrayList years = new DoubleArrayList(x);
-        DoubleArrayList rawValues = new DoubleArrayList(y);
-
-        // get the data from the images (only from the first band)
-//        for (ImageValues image : images) {
-//          PixelFunction f = image.bandFunctions[0];
-//          years.add(image.year);
-//          rawValues.add(f.value().getFloat(x, y));
-//        }
-
-        int nObs = rawValues.size();
-        double[] values = rawValues.toDoubleArray();
-        double[] times = years.toDoubleArray();
-        for (int i = 0; i < nObs; i++) {
-          // subtract the minimum year (the collection was sorted before)
-          times[i] = years.get(i) - years.get(0);
-        }
+        double[] times = axis.times;
+        double[] values = y.clone();
 
         // pre-calculates the mean of the values.
         double valuesMean = 0.0;
@@ -171,29 +615,330 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         // identify the potential vertices (in total there will be
         // maxSegments + 1 + vertexCountOvershoot vertices)
         // REF: tbcd_v2.pro: find_vertices
-        List<Integer> potentialVertices = identifyPotentialVertices(times,
+        List<Integer> potentialVertices = identifyPotentialVertices(axis,
             values, maxSegments, vertexCountOvershoot, preventOneYearRecovery);
 
         // prune the amount of vertices down to maxSegments + 1
         // REF: vert_verts3.pro: vet_verts3
         List<Integer> prunedVertices =
-            cullByAngle(times, values, maxSegments, potentialVertices);
+            cullByAngle(axis, values, maxSegments, potentialVertices);
 
         // select the best model to represent the data
         // REF: tbcd_v2.pro: find_best_trace
-        model = identifyBestModel(times, values, valuesMean,
+        model = identifyBestModel(axis, values, valuesMean,
             prunedVertices, recoveryThreshold, bestModelProportion);
         if (model == null || model.pValue > pvalThreshold) {
           model = identifyBestModelsUsingLevenbergMarquardt(times, values,
               valuesMean, prunedVertices, recoveryThreshold,
               bestModelProportion);
         }
+      }
+      return model;
+    }
+
+    /**
+     * Returns the f-statistic of a model with numVertices vertices fitted to
+     * nObs observations, given its total and residual sums of squares.
+     */
+    private static double fStatistic(double sumOfSquaresTotal,
+        double sumOfSquaresResidual,
+        int numVertices,
+        int nObs) {
+      final double epsilon = 0.00001;
+      if (sumOfSquaresResidual > sumOfSquaresTotal) {
+        sumOfSquaresResidual = sumOfSquaresTotal;
+      }
+
+      double sumOfSquaresExplained = sumOfSquaresTotal - sumOfSquaresResidual;
+
+      int dfExplained = numVertices * 2 - 2;
+      int dfResidual = nObs - dfExplained - 1;
+
+      double fStat = 0.0;
+      if (dfResidual > 0) {
+        fStat = (sumOfSquaresExplained / dfExplained)
+            / (sumOfSquaresResidual / dfResidual);
+
+        if (fStat < epsilon) {
+          fStat = epsilon / (sumOfSquaresResidual / dfResidual);
+        }
+      }
+      return fStat;
+    }
+
+    /**
+     * Returns the p-value of the f-statistic of a model with numVertices
+     * vertices fitted to nObs observations.
+     */
+    private static double pValue(double fStat, int numVertices, int nObs) {
+      // Note: p-value less than this is treated as 0
+      final double pzero = 1e-9;
+
+      int dfExplained = numVertices * 2 - 2;
+      int dfResidual = nObs - dfExplained - 1;
+
+      double pValue = 1.0;
+      if (dfResidual > 0) {
+        pValue = SpecialMath.incompleteBeta(dfResidual / (dfResidual
+            + dfExplained * fStat), dfResidual / 2.0, dfExplained / 2.0);
+      }
+      return pValue < pzero ? pzero : pValue;
+    }
+
+    /**
+     * Fits the model of a pixel and returns the state needed to update it
+     * later with updateState().
+     */
+    public ModelState getState(TimeAxis axis, double[] y) {
+      ModelState state = new ModelState();
+      captureState(fitModel(axis, y), y, state);
+      return state;
+    }
+
+    /**
+     * Updates the model of a pixel after one observation was appended to its
+     * series: y (and the axis) must be the series the state was built from
+     * plus the new observation at the end.
+     *
+     * <p>The series is smoothed again as fitModel() does, and the last
+     * segment of the model is extended to the new observation and refitted
+     * from its running sums, choosing between the point-to-point and the
+     * anchored fits as fitPaths() does. The goodness of fit of the model is
+     * updated from the running sums of the series. Only the smoothing is
+     * O(n), the update itself is O(1). The pixel is segmented again (with
+     * getState()) if the smoothing changes any of the previous observations
+     * (e.g. the previous last one became a spike), if the new observation is
+     * an outlier of the last segment, that is, its residual is larger than
+     * tolerance times the RMSE of the model, if a series of a different
+     * length is given, or if the updated model is not valid anymore (or the
+     * last vertex of the model was not the last observation, or the model
+     * was fitted by the Levenberg-Marquardt method, which refits all the
+     * segments). Otherwise the model is the one a full fit gets with the same
+     * vertices. The vertices themselves are not searched again, so the
+     * updated model can differ from the one getState() fits to the extended
+     * series.
+     *
+     * @return true if the model was updated incrementally, false if the
+     * pixel was segmented again.
+     */
+    public boolean updateState(ModelState state,
+        TimeAxis axis,
+        double[] y,
+        double tolerance) {
+      Preconditions.checkArgument(axis.size() == y.length);
+      int nObs = y.length;
+      int lastVertex = state.vertices[state.vertices.length - 1];
+      if (!state.pathFit || nObs != state.numObs + 1
+          || lastVertex != state.numObs - 1
+          || !updateLastSegment(state, axis, y, tolerance)) {
+        captureState(fitModel(axis, y), y, state);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Tries to extend the last segment of the state to the last observation
+     * of y. Returns false, leaving the state unchanged, if the pixel needs to
+     * be segmented again.
+     */
+    private boolean updateLastSegment(ModelState state,
+        TimeAxis axis,
+        double[] y,
+        double tolerance) {
+      double[] x = axis.times;
+      int nObs = y.length;
+      int numVertices = state.vertices.length;
+      int last = numVertices - 2;
+      int begin = state.vertices[last];
+
+      // the full fit smooths the whole series, in which the previous last
+      // observation is now an interior one. The update is only valid if the
+      // smoothed values of the previous observations, which the state was
+      // built from, are unchanged.
+      if (stateValues.length != nObs) {
+        stateValues = new double[nObs];
+      }
+      System.arraycopy(y, 0, stateValues, 0, nObs);
+      desawtooth(stateValues, spikeThreshold);
+      for (int i = 0; i < nObs - 1; i++) {
+        if (stateValues[i] != state.values[i]) {
+          return false;
+        }
+      }
+
+      // is the new observation within the tolerance of the last segment? (the
+      // last observation is never smoothed)
+      double value = stateValues[nObs - 1];
+      double dx = x[nObs - 1] - x[begin];
+      double slope = state.slopes[last];
+      double intercept = state.intercepts[last];
+      double residualLast = segmentResidual(state.lastCount, state.lastSumX,
+          state.lastSumXX, state.lastSumY, state.lastSumXY, state.lastSumYY,
+          slope, intercept);
+      double rmse =
+          Math.sqrt((state.residualOthers + residualLast) / state.numObs);
+      if (Math.abs(value - (intercept + dx * slope)) > tolerance * rmse) {
+        return false;
+      }
+
+      // refit the extended last segment as fitPaths() does: the first
+      // segment is a free linear regression, the others are the best of a
+      // point-to-point line and a regression anchored at their first vertex.
+      double count = state.lastCount + 1;
+      double sumX = state.lastSumX + dx;
+      double sumXX = state.lastSumXX + dx * dx;
+      double sumY = state.lastSumY + value;
+      double sumXY = state.lastSumXY + dx * value;
+      double sumYY = state.lastSumYY + value * value;
+      if (numVertices == 2) {
+        slope = (count * sumXY - sumX * sumY) / (count * sumXX - sumX * sumX);
+        intercept = (sumY - slope * sumX) / count;
+      } else {
+        double slopePtP = (value - intercept) / dx;
+        double slopeLnR = (sumXY - intercept * sumX) / sumXX;
+        double residualPtP = segmentResidual(count, sumX, sumXX, sumY, sumXY,
+            sumYY, slopePtP, intercept);
+        double residualLnR = segmentResidual(count, sumX, sumXX, sumY, sumXY,
+            sumYY, slopeLnR, intercept);
+        slope = residualLnR >= residualPtP ? slopePtP : slopeLnR;
+      }
+
+      // update the goodness of fit of the model.
+      double sumRaw = state.sumRaw + value;
+      double sumValues = state.sumValues + value;
+      double sumValuesSq = state.sumValuesSq + value * value;
+      double yMean = sumRaw / nObs;
+      double sumOfSquaresTotal = sumValuesSq - 2.0 * yMean * sumValues
+          + nObs * yMean * yMean;
+      double sumOfSquaresResidual = state.residualOthers + segmentResidual(
+          count, sumX, sumXX, sumY, sumXY, sumYY, slope, intercept);
+      double fStat = fStatistic(sumOfSquaresTotal, sumOfSquaresResidual,
+          numVertices, nObs);
+      double pValue = pValue(fStat, numVertices, nObs);
+      if (pValue > pvalThreshold) {
+        return false;
+      }
+
+      // the fitted values are extreme at the vertices, so their range comes
+      // from the intercepts and the end of the last segment.
+      double end = intercept + slope * (x[nObs - 1] - x[begin]);
+      double yMin = end;
+      double yMax = end;
+      for (int i = 0; i < numVertices - 1; i++) {
+        double start = i == last ? intercept : state.intercepts[i];
+        yMin = Math.min(yMin, start);
+        yMax = Math.max(yMax, start);
+      }
+      for (int i = 0; i < numVertices - 1; i++) {
+        double s = i == last ? slope : state.slopes[i];
+        if (s < 0.0 && recoveryThreshold < Math.abs(s / (yMax - yMin))) {
+          return false;
+        }
+      }
+
+      state.numObs = nObs;
+      state.vertices[numVertices - 1] = nObs - 1;
+      state.slopes[last] = slope;
+      state.intercepts[last] = intercept;
+      state.fStat = fStat;
+      state.pValue = pValue;
+      state.values = Arrays.copyOf(stateValues, nObs);
+      state.sumRaw = sumRaw;
+      state.sumValues = sumValues;
+      state.sumValuesSq = sumValuesSq;
+      state.lastCount = count;
+      state.lastSumX = sumX;
+      state.lastSumXX = sumXX;
+      state.lastSumY = sumY;
+      state.lastSumXY = sumXY;
+      state.lastSumYY = sumYY;
+      return true;
+    }
+
+    /**
+     * Returns the sum of squared residuals of the line intercept + slope * x
+     * over the observations of a segment, given their sums.
+     */
+    private static double segmentResidual(double count,
+        double sumX,
+        double sumXX,
+        double sumY,
+        double sumXY,
+        double sumYY,
+        double slope,
+        double intercept) {
+      double residual = sumYY - 2.0 * intercept * sumY - 2.0 * slope * sumXY
+          + count * intercept * intercept + 2.0 * intercept * slope * sumX
+          + slope * slope * sumXX;
+      // due to roundoff, it could end up slightly negative
+      return residual <= 0 ? 0 : residual;
+    }
+
+    /**
+     * Stores in state what updateState() needs to know about the model
+     * fitted to the raw values y.
+     */
+    private void captureState(Model model, double[] y, ModelState state) {
+      double[] x = model.x;
+      double[] values = model.y;
+      int nObs = values.length;
+      int numVertices = model.vertices.size();
+      int last = numVertices - 2;
+
+      state.numObs = nObs;
+      state.vertices = new int[numVertices];
+      state.slopes = new double[numVertices - 1];
+      state.intercepts = new double[numVertices - 1];
+      for (int i = 0; i < numVertices; i++) {
+        state.vertices[i] = model.vertices.get(i);
+      }
+      for (int i = 0; i < numVertices - 1; i++) {
+        state.slopes[i] = model.slopes.get(i);
+        state.intercepts[i] = model.intercepts.get(i);
+      }
+      state.fStat = model.fStat;
+      state.pValue = model.pValue;
+      state.pathFit = model instanceof ModelNormal;
+      state.values = values.clone();
+
+      state.sumRaw = 0.0;
+      state.sumValues = 0.0;
+      state.sumValuesSq = 0.0;
+      for (int i = 0; i < nObs; i++) {
+        state.sumRaw += y[i];
+        state.sumValues += values[i];
+        state.sumValuesSq += values[i] * values[i];
+      }
+
+      // the residuals of the segments before the last one (a vertex belongs
+      // to the segment that starts at it).
+      state.residualOthers = 0.0;
+      for (int i = 0; i < last; i++) {
+        int begin = state.vertices[i];
+        for (int j = begin; j < state.vertices[i + 1]; j++) {
+          double fitted = (x[j] - x[begin]) * state.slopes[i]
+              + state.intercepts[i];
+          state.residualOthers += (values[j] - fitted) * (values[j] - fitted);
+        }
+      }
 
-        yearsArray = years.toDoubleArray();
-        rawValuesArray =  rawValues.toDoubleArray();
+      int begin = state.vertices[last];
+      state.lastCount = 0.0;
+      state.lastSumX = 0.0;
+      state.lastSumXX = 0.0;
+      state.lastSumY = 0.0;
+      state.lastSumXY = 0.0;
+      state.lastSumYY = 0.0;
+      for (int j = begin; j < nObs; j++) {
+        double dx = x[j] - x[begin];
+        state.lastCount++;
+        state.lastSumX += dx;
+        state.lastSumXX += dx * dx;
+        state.lastSumY += values[j];
+        state.lastSumXY += dx * values[j];
+        state.lastSumYY += values[j] * values[j];
       }
-      //return toArray(yearsArray, rawValuesArray, model.yFitted, model.vertices);
-      return model.vertices;
     }
 
     /**
@@ -266,9 +1011,6 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
        * measure its goodness of fit.
        */
       protected void goodnessOfFit() {
-        // Note: p-value less than this is treated as 0
-        final double pzero = 1e-9;
-        final double epsilon = 0.00001;
         double sumOfSquaresTotal = 0.0;
         double sumOfSquaresResidual = 0.0;
         for (int i = 0; i < y.length; i++) {
@@ -276,31 +1018,9 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
           sumOfSquaresResidual += (y[i] - yFitted[i]) * (y[i] - yFitted[i]);
         }
 
-        if (sumOfSquaresResidual > sumOfSquaresTotal) {
-          sumOfSquaresResidual = sumOfSquaresTotal;
-        }
-
-        double sumOfSquaresExplained = sumOfSquaresTotal - sumOfSquaresResidual;
-
-        int dfExplained = vertices.size() * 2 - 2;
-        int dfResidual = y.length - dfExplained - 1;
-
-        double fStat = 0.0;
-        double pValue = 1.0;
-        if (dfResidual > 0) {
-          fStat = (sumOfSquaresExplained / dfExplained)
-              / (sumOfSquaresResidual / dfResidual);
-
-          if (fStat < epsilon) {
-            fStat = epsilon / (sumOfSquaresResidual / dfResidual);
-          }
-
-          pValue = SpecialMath.incompleteBeta(dfResidual / (dfResidual
-              + dfExplained * fStat), dfResidual / 2.0, dfExplained / 2.0);
-        }
-
-        this.fStat = fStat;
-        this.pValue = pValue < pzero ? pzero : pValue;
+        this.fStat = fStatistic(sumOfSquaresTotal, sumOfSquaresResidual,
+            vertices.size(), y.length);
+        this.pValue = pValue(fStat, vertices.size(), y.length);
       }
 
       /**
@@ -317,6 +1037,17 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         }
         return true;
       }
+
+      /**
+       * Returns the root mean square of the residuals of the fitted values.
+       */
+      public double rmse() {
+        double sumOfSquaresResidual = 0.0;
+        for (int i = 0; i < y.length; i++) {
+          sumOfSquaresResidual += (y[i] - yFitted[i]) * (y[i] - yFitted[i]);
+        }
+        return Math.sqrt(sumOfSquaresResidual / y.length);
+      }
     }
 
     /**
@@ -329,10 +1060,17 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
           double[] x,
           double[] y,
           double yMean) {
-        super(x, y, vertices, yMean);
+        this(vertices, TimeAxis.ofTimes(x), y, yMean);
+      }
+
+      public ModelNormal(List<Integer> vertices,
+          TimeAxis axis,
+          double[] y,
+          double yMean) {
+        super(axis.times, y, vertices, yMean);
 
         // sets the slopes and intercepts.
-        identifyBestPath(x, y);
+        identifyBestPath(axis, y);
 
         // calculates the fitted values for this model.
         this.yFitted = getFittedValues();
@@ -345,93 +1083,216 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         yFittedRange = Doubles.max(yFitted) - Doubles.min(yFitted);
       }
 
+      /**
+       * Copies the model stored in the given row of the buffers of
+       * identifyBestModel(), which were sized for maxVertices vertices.
+       */
+      private ModelNormal(TimeAxis axis,
+          double[] y,
+          double yMean,
+          int model,
+          int maxVertices) {
+        super(axis.times, y, Collections.<Integer>emptyList(), yMean);
+        int numVertices = modelNumVertices[model];
+        int vertexRow = model * maxVertices;
+        int segmentRow = model * (maxVertices - 1);
+        int fittedRow = model * y.length;
+        for (int i = 0; i < numVertices; i++) {
+          vertices.add(modelVertices[vertexRow + i]);
+        }
+        this.slopes = new DoubleArrayList(Arrays.copyOfRange(modelSlopes,
+            segmentRow, segmentRow + numVertices - 1));
+        this.intercepts = new DoubleArrayList(Arrays.copyOfRange(
+            modelIntercepts, segmentRow, segmentRow + numVertices - 1));
+        this.yFitted = Arrays.copyOfRange(modelFitted, fittedRow,
+            fittedRow + y.length);
+        this.fStat = modelFStats[model];
+        this.pValue = modelPValues[model];
+        this.yFittedRange = modelRanges[model];
+      }
+
       /**
        * This methods defines the final path of the trends given a list of the
-       * vertices. The path is defined by fitting segments either by a
-       * straight point-to-point model or an anchored linear regression on the
-       * last point (a constraint of the path is that it must be continuous).
-       * the side effect of this method is that the slopes and intercepts of the
-       * object are set.
+       * vertices (see fitPaths()). The side effect of this method is that the
+       * slopes and intercepts of the object are set.
        */
-      private void identifyBestPath(double[] x, double[] y) {
-        this.slopes = new DoubleArrayList();
-        this.intercepts = new DoubleArrayList();
+      private void identifyBestPath(TimeAxis axis, double[] y) {
+        int numVertices = vertices.size();
+        int[] vertexIndices = new int[numVertices];
+        for (int i = 0; i < numVertices; i++) {
+          vertexIndices[i] = vertices.get(i);
+        }
+        double[] segmentSlopes = new double[numVertices - 1];
+        double[] segmentIntercepts = new double[numVertices - 1];
+        fitPaths(axis, vertexIndices, numVertices, new double[][] {y}, 1,
+            segmentSlopes, segmentIntercepts);
 
-        /**
-         * For the first segment, as it doesn't have an anchor point, it's the
-         * best (measured by MSE) of a liner regression or a point-to-point
-         * linear. For every other segment it's the best of these approaches
-         * with the care of the end of the last segment connecting with the
-         * beginning of the next.
-         */
-        int endPointA = vertices.get(0);
-        int endPointB = vertices.get(1);
+        this.slopes = new DoubleArrayList(segmentSlopes);
+        this.intercepts = new DoubleArrayList(segmentIntercepts);
+      }
+    }
 
-        // series of sums used to determine the slopes of a linear regression
-        double sumX, sumY, sumXX, sumXY;
-        sumX = sumY = sumXY = sumXX = 0.0;
+    /**
+     * This methods defines the final path of the trends of one or more bands
+     * given the vertices. The path is defined by fitting segments either by a
+     * straight point-to-point model or an anchored linear regression on the
+     * last point (a constraint of the path is that it must be continuous).
+     *
+     * <p>The segments are fitted for all the bands together, so the x
+     * quantities of each segment are only computed once. The slope and
+     * intercept of segment i of band b are stored at b * (numVertices - 1) + i
+     * of slopes and intercepts.
+     */
+    private void fitPaths(TimeAxis axis,
+        int[] vertices,
+        int numVertices,
+        double[][] y,
+        int numBands,
+        double[] slopes,
+        double[] intercepts) {
+      double[] x = axis.times;
+      int numSegments = numVertices - 1;
+      if (pathAnchors.length < numBands) {
+        pathAnchors = new double[numBands];
+      }
+
+      /**
+       * For the first segment, as it doesn't have an anchor point, it's the
+       * best (measured by MSE) of a liner regression or a point-to-point
+       * linear. For every other segment it's the best of these approaches
+       * with the care of the end of the last segment connecting with the
+       * beginning of the next.
+       */
+      int endPointA = vertices[0];
+      int endPointB = vertices[1];
+
+      // series of sums used to determine the slopes of a linear regression
+      // (the ones that only depend on x come from the time axis).
+      double sumX = axis.sumX(endPointA, endPointB);
+      double sumXX = axis.sumXX(endPointA, endPointB);
+      double segmentLength = endPointB - endPointA + 1.0;
+      double denominator = segmentLength * sumXX - sumX * sumX;
+      for (int b = 0; b < numBands; b++) {
+        double[] yb = y[b];
+        double sumY, sumXY;
+        sumY = sumXY = 0.0;
         for (int i = endPointA; i <= endPointB; i++) {
-          sumX += x[i];
-          sumY += y[i];
-          sumXY += x[i] * y[i];
-          sumXX += x[i] * x[i];
+          sumY += yb[i];
+          sumXY += x[i] * yb[i];
         }
 
         // slope and intercept of a Linear Regression (LnR).
-        double segmentLength = endPointB - endPointA + 1.0;
         double slopeLnR = segmentLength * sumXY - sumX * sumY;
-        slopeLnR /= (segmentLength * sumXX - sumX * sumX);
+        slopeLnR /= denominator;
         double interceptLnR = sumY / segmentLength
             - slopeLnR * sumX / segmentLength;
 
-        this.slopes.add(slopeLnR);
-        this.intercepts.add(interceptLnR);
+        slopes[b * numSegments] = slopeLnR;
+        intercepts[b * numSegments] = interceptLnR;
+        pathAnchors[b] = x[endPointB] * slopeLnR + interceptLnR;
+      }
 
-        // now fit the rest of the segments.
-        double anchorPoint = x[endPointB] * slopeLnR + interceptLnR;
-        for (int i = 1; i < vertices.size() - 1; i++) {
-          endPointA = vertices.get(i);
-          endPointB = vertices.get(i + 1);
+      // now fit the rest of the segments.
+      for (int i = 1; i < numSegments; i++) {
+        endPointA = vertices[i];
+        endPointB = vertices[i + 1];
+        double xRange = x[endPointB] - x[endPointA];
+        double xx = axis.sumAnchoredXX(endPointA, endPointB);
+
+        for (int b = 0; b < numBands; b++) {
+          double[] yb = y[b];
+          double anchorPoint = pathAnchors[b];
 
           // defines the fit of the point-to-point model
-          double slopePtP =
-              (y[endPointB] - anchorPoint) / (x[endPointB] - x[endPointA]);
+          double slopePtP = (yb[endPointB] - anchorPoint) / xRange;
           double interceptPtP = anchorPoint;
           double yPtP = 0.0;
           double residualPtP = 0.0;
           for (int j = endPointA; j <= endPointB; j++) {
             yPtP = (x[j] - x[endPointA]) * slopePtP + interceptPtP;
-            residualPtP += (y[j] - yPtP) * (y[j] - yPtP);
+            residualPtP += (yb[j] - yPtP) * (yb[j] - yPtP);
           }
 
           // defines the fit of the anchored regression model
-          double xx = 0.0;
           double xy = 0.0;
           for (int j = endPointA; j <= endPointB; j++) {
-            double xDisplacement = x[j] - x[endPointA];
-            xx += xDisplacement * xDisplacement;
-            xy += xDisplacement * (y[j] - anchorPoint);
+            xy += (x[j] - x[endPointA]) * (yb[j] - anchorPoint);
           }
-          slopeLnR = xy / xx;
-          interceptLnR = anchorPoint;
+          double slopeLnR = xy / xx;
+          double interceptLnR = anchorPoint;
           double yLnR = 0.0;
           double residualLnR = 0.0;
           for (int j = endPointA; j <= endPointB; j++) {
             yLnR = (x[j] - x[endPointA]) * slopeLnR + interceptLnR;
-            residualLnR += (y[j] - yLnR) * (y[j] - yLnR);
+            residualLnR += (yb[j] - yLnR) * (yb[j] - yLnR);
           }
 
           // picks the one with least residue
           if (residualLnR >= residualPtP) {
             // best model is the point-to-point
-            this.slopes.add(slopePtP);
-            this.intercepts.add(interceptPtP);
-            anchorPoint = yPtP;
+            slopes[b * numSegments + i] = slopePtP;
+            intercepts[b * numSegments + i] = interceptPtP;
+            pathAnchors[b] = yPtP;
           } else {
             // best model is the anchored linear regression
-            this.slopes.add(slopeLnR);
-            this.intercepts.add(interceptLnR);
-            anchorPoint = yLnR;
+            slopes[b * numSegments + i] = slopeLnR;
+            intercepts[b * numSegments + i] = interceptLnR;
+            pathAnchors[b] = yLnR;
+          }
+        }
+      }
+    }
+
+    /**
+     * Fit-to-vertices mode: fits the given bands with the same path fitting
+     * as ModelNormal, at vertices that were found on another (primary) band,
+     * e.g. the vertices returned by getResult(). This way segmentation is only
+     * run once per pixel, and the secondary bands share the x quantities of
+     * each segment.
+     *
+     * @param axis the time axis of the pixel.
+     * @param vertices the vertices found on the primary band.
+     * @param bands the secondary bands, bands[b][i] being the value of band b
+     * at observation i. They are used as given (no desawtooth).
+     * @param fitted receives the fitted values, with the same shape as bands.
+     */
+    public void fitToVertices(TimeAxis axis,
+        List<Integer> vertices,
+        double[][] bands,
+        double[][] fitted) {
+      int numVertices = vertices.size();
+      int numBands = bands.length;
+      int numSegments = numVertices - 1;
+      Preconditions.checkArgument(numVertices >= 2
+          && fitted.length == numBands);
+      for (int b = 0; b < numBands; b++) {
+        Preconditions.checkArgument(bands[b].length == axis.size()
+            && fitted[b].length == axis.size());
+      }
+
+      if (pathVertices.length < numVertices) {
+        pathVertices = new int[numVertices];
+      }
+      for (int i = 0; i < numVertices; i++) {
+        pathVertices[i] = vertices.get(i);
+      }
+      if (pathSlopes.length < numBands * numSegments) {
+        pathSlopes = new double[numBands * numSegments];
+        pathIntercepts = new double[numBands * numSegments];
+      }
+
+      fitPaths(axis, pathVertices, numVertices, bands, numBands, pathSlopes,
+          pathIntercepts);
+
+      double[] x = axis.times;
+      for (int b = 0; b < numBands; b++) {
+        for (int i = 0; i < numSegments; i++) {
+          int begin = pathVertices[i];
+          int end = pathVertices[i + 1];
+          double slope = pathSlopes[b * numSegments + i];
+          double intercept = pathIntercepts[b * numSegments + i];
+          for (int j = begin; j <= end; j++) {
+            fitted[b][j] = (x[j] - x[begin]) * slope + intercept;
           }
         }
       }
@@ -588,14 +1449,151 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
       }
     }
 
+    /**
+     * An indexed binary heap over the items 0..capacity-1, ordered by their
+     * keys. Items with the same key come out in increasing order, which is
+     * the order a linear scan for the first extreme value would pick them.
+     * The arrays only grow, so one heap is reused across pixels without
+     * allocating.
+     */
+    private static final class IndexedHeap {
+      private final boolean largestFirst;
+      private double[] keys = new double[0];
+      private int[] heap = new int[0];
+      private int[] position = new int[0];
+      private int size;
+
+      IndexedHeap(boolean largestFirst) {
+        this.largestFirst = largestFirst;
+      }
+
+      /**
+       * Empties the heap and makes room for the items 0..capacity-1.
+       */
+      void reset(int capacity) {
+        if (keys.length < capacity) {
+          keys = new double[capacity];
+          heap = new int[capacity];
+          position = new int[capacity];
+        }
+        size = 0;
+      }
+
+      /**
+       * Appends an item without restoring the heap order; call heapify()
+       * once all the items have been added.
+       */
+      void add(int item, double key) {
+        keys[item] = key;
+        heap[size] = item;
+        position[item] = size++;
+      }
+
+      void heapify() {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+          siftDown(i);
+        }
+      }
+
+      boolean isEmpty() {
+        return size == 0;
+      }
+
+      int peek() {
+        return heap[0];
+      }
+
+      double key(int item) {
+        return keys[item];
+      }
+
+      void remove(int item) {
+        int i = position[item];
+        size--;
+        if (i != size) {
+          swap(i, size);
+          siftDown(i);
+          siftUp(i);
+        }
+      }
+
+      /**
+       * Changes the key of an item that is in the heap.
+       */
+      void update(int item, double key) {
+        keys[item] = key;
+        int i = position[item];
+        siftDown(i);
+        siftUp(i);
+      }
+
+      private boolean before(int a, int b) {
+        int cmp = Double.compare(keys[a], keys[b]);
+        if (largestFirst) {
+          cmp = -cmp;
+        }
+        return cmp < 0 || (cmp == 0 && a < b);
+      }
+
+      private void swap(int i, int j) {
+        int a = heap[i];
+        int b = heap[j];
+        heap[i] = b;
+        heap[j] = a;
+        position[b] = i;
+        position[a] = j;
+      }
+
+      private void siftUp(int i) {
+        while (i > 0) {
+          int parent = (i - 1) / 2;
+          if (!before(heap[i], heap[parent])) {
+            break;
+          }
+          swap(i, parent);
+          i = parent;
+        }
+      }
+
+      private void siftDown(int i) {
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size && before(heap[child + 1], heap[child])) {
+            child++;
+          }
+          if (!before(heap[child], heap[i])) {
+            break;
+          }
+          swap(i, child);
+          i = child;
+        }
+      }
+    }
+
     /**
      *  First step of the algorithm is the dampering of spikes in the time
      *  series. This is accomplished by successively smoothing the
      *  observations by adding a correction to their current values.
+     *
+     *  <p>The correction proportions are kept in a max-heap. Correcting an
+     *  observation only changes its own proportion and the proportions of its
+     *  two neighbors, so only those are updated after each correction.
      */
     public double[] desawtooth(double[] values, double threshold) {
-      final double epsilon = 1e-9;
-      final double alpha = 0.3;
+      int n = values.length;
+      if (n < 3) {
+        // there are no interior observations to correct.
+        return values;
+      }
+
+      spikeHeap.reset(n);
+      for (int i = 1; i < n - 1; i++) {
+        spikeHeap.add(i, correctionProportion(values, i));
+      }
+      spikeHeap.heapify();
 
       // The spikes will be dampered until the loop has run for the same amount
       // of times as the number of observations or there are no spikes above a
@@ -603,42 +1601,45 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
       // TODO(gorelick): Authors coded in a way that the correction is always
       // applied at least one time. Right now I am in touch with the authors of
       // original code to know if this is intended.
-      double max = 1.0;
-      int maxIdx = -1;
-      for (int count = 0; count < values.length; count++) {
-        double[] correction = new double[values.length];
-        double[] propCorrection = new double[values.length];
-
-        max = 0.0;
-        for (int i = 1; i < values.length - 1; i++) {
-          double md = Math.max(Math.abs(values[i] - values[i - 1]),
-              Math.abs(values[i] - values[i + 1]));
-
-          if (md > 0.0) {
-            propCorrection[i] = 1.0 - Math.abs(values[i - 1] - values[i + 1]) / md;
-            correction[i] = propCorrection[i] * (((values[i - 1] + values[i + 1]) / 2) - values[i]);
-          }
-
-          //keep a record of the largest correction proportion
-          if (max < propCorrection[i] || i==1) {
-            max = propCorrection[i];
-            maxIdx = i;
-          }
-        }
+      for (int count = 0; count < n; count++) {
+        // the largest correction proportion (the first one, if there is a tie)
+        int maxIdx = spikeHeap.peek();
+        double max = spikeHeap.key(maxIdx);
 
         // smooth the observations by adding a correction to the current values
         // Note (yang): if always to run it once add || count==0 in the if test.
         if (max > threshold) {
-            values[maxIdx] = values[maxIdx] + correction[maxIdx];
+          values[maxIdx] = values[maxIdx]
+              + max * (((values[maxIdx - 1] + values[maxIdx + 1]) / 2)
+                  - values[maxIdx]);
         }
         else {
           //no correction needed
           break;
         }
+
+        for (int i = Math.max(1, maxIdx - 1); i <= Math.min(n - 2, maxIdx + 1);
+            i++) {
+          spikeHeap.update(i, correctionProportion(values, i));
+        }
       }
       return values;
     }
 
+    /**
+     * Returns the proportion of the correction that desawtooth() would apply
+     * to the interior observation i.
+     */
+    private static double correctionProportion(double[] values, int i) {
+      double md = Math.max(Math.abs(values[i] - values[i - 1]),
+          Math.abs(values[i] - values[i + 1]));
+
+      if (md > 0.0) {
+        return 1.0 - Math.abs(values[i - 1] - values[i + 1]) / md;
+      }
+      return 0.0;
+    }
+
     /**
      * Given the values that belong to a segment, return its slope, intercept
      * and mse.
@@ -652,39 +1653,38 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         double[] y,
         int begin,
         int end) {
+      return linearFit(TimeAxis.ofTimes(x), y, begin, end);
+    }
 
-      // run the linear least square solver
-      double[] residuals = new double[1];
-      DenseMatrix64F results = new DenseMatrix64F(2, 1);
-
-      //TODO: YANG verify LinearLeastSquares
-      //NOTE: Noel indicate this section is wrong
-//      LinearLeastSquares lls = new LinearLeastSquares(1, 1);
-//      for (int i = begin; i <= end; i++) {
-//        lls.addInput(x, i, y, i);
-//      }
-//      lls.getSolution(results);
-//      lls.getRmsResiduals(results, residuals);
-
-
-      //NOTE: new code from Noel, I think this is wrong.
-      LinearLeastSquares lls = new LinearLeastSquares(2, 1);
-      double[] designMatrix = {1, 0};
+    /**
+     * Same as above, taking the sums of x from the time axis. This solves
+     * the same normal equations as a LinearLeastSquares with the design
+     * matrix [1, x], without allocating a solver per segment.
+     */
+    public double[] linearFit(TimeAxis axis,
+        double[] y,
+        int begin,
+        int end) {
+      double[] x = axis.times;
+      double n = end - begin + 1;
+      double sumX = axis.sumX(begin, end);
+      double sumXX = axis.sumXX(begin, end);
+      double sumY = 0.0;
+      double sumXY = 0.0;
+      double sumYY = 0.0;
       for (int i = begin; i <= end; i++) {
-        // The first x input is always 1, so just update the second x each time.
-        designMatrix[1] = x[i];
-        lls.addInput(designMatrix, 0, y, i);
+        sumY += y[i];
+        sumXY += x[i] * y[i];
+        sumYY += y[i] * y[i];
       }
-      lls.getSolution(results);
-      lls.getRmsResiduals(results, residuals);
-
 
       // retrieve the slope and intercept
-      double slope = results.get(1, 0);
-      double intercept = results.get(0, 0);
+      double slope = (n * sumXY - sumX * sumY) / (n * sumXX - sumX * sumX);
+      double intercept = (sumY - slope * sumX) / n;
 
-      // retrieve the MSE
-      double mse = residuals[0] * residuals[0];
+      // retrieve the MSE (due to roundoff, it could end up slightly negative)
+      double sumSq = sumYY - (intercept * sumY + slope * sumXY);
+      double mse = (sumSq <= 0) ? 0 : sumSq / n;
 
       return new double[] {mse, slope, intercept};
     }
@@ -743,6 +1743,16 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         int maxSegments,
         int vertexCountOvershoot,
         boolean preventOneYearRecovery) {
+      return identifyPotentialVertices(TimeAxis.ofTimes(x), y, maxSegments,
+          vertexCountOvershoot, preventOneYearRecovery);
+    }
+
+    public List<Integer> identifyPotentialVertices(TimeAxis axis,
+        double[] y,
+        int maxSegments,
+        int vertexCountOvershoot,
+        boolean preventOneYearRecovery) {
+      double[] x = axis.times;
 
       int totalSegments = Math.min(maxSegments + vertexCountOvershoot,
           x.length - 1);
@@ -762,7 +1772,7 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         // segment, so here it's treated differently.
         int begin = vertices.get(vertices.size() - 2);
         int end = vertices.get(vertices.size() - 1);
-        double[] tmpFit = linearFit(x, y, begin, end);
+        double[] tmpFit = linearFit(axis, y, begin, end);
         double mse = tmpFit[0];
         double slope = tmpFit[1];
         double intercept = tmpFit[2];
@@ -786,7 +1796,7 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
           }
 
           // find the segment with biggest MSE
-          tmpFit = linearFit(x, y, begin, end);
+          tmpFit = linearFit(axis, y, begin, end);
           mse = tmpFit[0];
           slope = tmpFit[1];
           intercept = tmpFit[2];
@@ -833,10 +1843,22 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         List<Integer> potentialVertices,
         double range,
         double weightFactor) {
+      return angleDifference(x, y, potentialVertices.get(idx - 1),
+          potentialVertices.get(idx), potentialVertices.get(idx + 1), range,
+          weightFactor);
+    }
 
-      int curr = potentialVertices.get(idx);
-      int prev = potentialVertices.get(idx - 1);
-      int next = potentialVertices.get(idx + 1);
+    /**
+     *  Same as above, but the vertex being measured (curr) and its neighbors
+     *  (prev and next) are given directly as observation indices.
+     */
+    private double angleDifference(double[] x,
+        double[] y,
+        int prev,
+        int curr,
+        int next,
+        double range,
+        double weightFactor) {
 
       double yDiff1 = y[curr] - y[prev];
       double yDiff2 = y[next] - y[curr];
@@ -858,79 +1880,127 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
      *  Receives a list of as much as maxSegments + 1 + vertexCountOvershoot
      *  vertices, then it reduces down to maxSegments + 1 vertices by removing
      *  those vertices that creates segments with a small angle difference.
+     *
+     *  <p>The vertices are kept in a doubly linked list over their positions
+     *  in potentialVertices, and the angles of the interior vertices in an
+     *  indexed min-heap, so each removal costs O(log k). Ties are broken by
+     *  position, which picks the same vertex as a linear scan for the first
+     *  minimum would. The given list is updated in place and returned.
      */
     public List<Integer> cullByAngle(double[] x,
         double[] y,
         int maxSegments,
         List<Integer> potentialVertices) {
+      return cullByAngle(TimeAxis.ofTimes(x), y, maxSegments,
+          potentialVertices);
+    }
+
+    public List<Integer> cullByAngle(TimeAxis axis,
+        double[] y,
+        int maxSegments,
+        List<Integer> potentialVertices) {
+      double[] x = axis.times;
       int maxVertices = maxSegments + 1;
+      int numVertices = potentialVertices.size();
 
-      if (potentialVertices.size() > maxVertices) {
+      if (numVertices > maxVertices) {
         int nObs = x.length;
+        initCullBuffers(nObs, numVertices);
 
-        // Find the min/max values of X and Y, and rescale Y to the same range
-        // as X. This is to normalize the values for the angle calculations
-        // below.
+        // Find the min/max values of Y (the range of X comes from the time
+        // axis), and rescale Y to the same range as X. This is to normalize
+        // the values for the angle calculations below.
         double minY = y[0];
         double maxY = y[0];
-        double minX = x[0];
-        double maxX = x[0];
         for (int i = 1; i < nObs; i++) {
           minY = Math.min(minY, y[i]);
           maxY = Math.max(maxY, y[i]);
-          minX = Math.min(minX, x[i]);
-          maxX = Math.max(maxX, x[i]);
         }
+        double range = axis.range();
 
-        double[] tmpY = new double[y.length];
+        double[] tmpY = cullY;
         for (int i = 0; i < nObs; i++) {
-          tmpY[i] = (maxX - minX) * (y[i] - minY) / (maxY - minY);
+          tmpY[i] = range * (y[i] - minY) / (maxY - minY);
         }
-        double range = maxX - minX;
 
-        // while there is still vertices to be removed, take out the with
-        // smallest angle difference.
-        List<Double> angles = new DoubleArrayList();
-        for (int i = 1; i < potentialVertices.size() - 1; i++) {
-          angles.add(angleDifference(x, tmpY, i, potentialVertices, range,
-              2.0));
+        // link the vertices and put all but the first and last ones, which
+        // shall never be removed, in the heap.
+        int last = numVertices - 1;
+        for (int i = 0; i < numVertices; i++) {
+          cullVertices[i] = potentialVertices.get(i);
+          cullPrev[i] = i - 1;
+          cullNext[i] = i + 1;
         }
+        angleHeap.reset(numVertices);
+        for (int i = 1; i < last; i++) {
+          angleHeap.add(i, angleDifference(x, tmpY, cullVertices[i - 1],
+              cullVertices[i], cullVertices[i + 1], range, 2.0));
+        }
+        angleHeap.heapify();
 
-        // note that during all of the process, the first and last vertices
-        // shall not be removed.
-        while (true) {
-          int minAngleDiffIndex = 0;
-          for (int i = 0; i < angles.size(); i++) {
-            if (angles.get(minAngleDiffIndex) > angles.get(i)) {
-              minAngleDiffIndex = i;
-            }
-          }
+        // while there is still vertices to be removed, take out the with
+        // smallest angle difference.
+        while (!angleHeap.isEmpty()) {
+          int removed = angleHeap.peek();
+          angleHeap.remove(removed);
 
-          potentialVertices.remove(minAngleDiffIndex + 1);
-          angles.remove(minAngleDiffIndex);
+          int prev = cullPrev[removed];
+          int next = cullNext[removed];
+          cullNext[prev] = next;
+          cullPrev[next] = prev;
+          numVertices--;
 
-          if (potentialVertices.size() <= maxVertices) {
+          if (numVertices <= maxVertices) {
             break;
           }
 
-          if (0 == minAngleDiffIndex) {
-            angles.set(0, angleDifference(x, tmpY, 1, potentialVertices,
-              maxY - minY, 2.0));
-          } else if (angles.size() == minAngleDiffIndex) {
-            angles.set(minAngleDiffIndex - 1, angleDifference(x, tmpY,
-                minAngleDiffIndex, potentialVertices, range, 2.0));
+          // only the neighbors of the removed vertex change their angles.
+          // Note: when the first interior vertex is removed the original
+          // implementation measures its successor against the range of Y
+          // instead of X; this is kept to produce the same vertices.
+          if (0 == prev) {
+            angleHeap.update(next, angleDifference(x, tmpY, cullVertices[prev],
+                cullVertices[next], cullVertices[cullNext[next]],
+                maxY - minY, 2.0));
+          } else if (last == next) {
+            angleHeap.update(prev, angleDifference(x, tmpY,
+                cullVertices[cullPrev[prev]], cullVertices[prev],
+                cullVertices[next], range, 2.0));
           } else {
-            angles.set(minAngleDiffIndex, angleDifference(x, tmpY,
-                minAngleDiffIndex + 1, potentialVertices, range, 2.0));
-            angles.set(minAngleDiffIndex - 1, angleDifference(x, tmpY,
-                minAngleDiffIndex, potentialVertices, range, 2.0));
+            angleHeap.update(next, angleDifference(x, tmpY, cullVertices[prev],
+                cullVertices[next], cullVertices[cullNext[next]], range, 2.0));
+            angleHeap.update(prev, angleDifference(x, tmpY,
+                cullVertices[cullPrev[prev]], cullVertices[prev],
+                cullVertices[next], range, 2.0));
           }
         }
+
+        // write the surviving vertices back, keeping their order.
+        potentialVertices.clear();
+        for (int i = 0; i <= last; i = cullNext[i]) {
+          potentialVertices.add(cullVertices[i]);
+        }
       }
 
       return potentialVertices;
     }
 
+    /**
+     * Makes sure the cullByAngle() workspace can hold nObs observations and
+     * numVertices vertices. The buffers only grow, so they are reused across
+     * pixels.
+     */
+    private void initCullBuffers(int nObs, int numVertices) {
+      if (cullY.length < nObs) {
+        cullY = new double[nObs];
+      }
+      if (cullVertices.length < numVertices) {
+        cullVertices = new int[numVertices];
+        cullPrev = new int[numVertices];
+        cullNext = new int[numVertices];
+      }
+    }
+
     /**
      * Identifies the weakest vertex according to the recovery rate criterion.
      * It favors the removal of fast recovery years, because they are probably
@@ -1027,11 +2097,20 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
      */
     public int bestModelByPValue(double[] pValues,
         double bestModelProportion) {
-      double minPValue = Doubles.min(pValues);
+      return bestModelByPValue(pValues, pValues.length, bestModelProportion);
+    }
+
+    private int bestModelByPValue(double[] pValues,
+        int numModels,
+        double bestModelProportion) {
+      double minPValue = pValues[0];
+      for (int i = 1; i < numModels; i++) {
+        minPValue = Math.min(minPValue, pValues[i]);
+      }
 
       // selects the first model that is within the threshold
       // Note: google implementation was wrong here, updated to match landtrendr logic
-      for (int i = 0; i < pValues.length; i++) {
+      for (int i = 0; i < numModels; i++) {
         if (pValues[i] <= minPValue * (2-bestModelProportion)) {
           return i;
         }
@@ -1100,38 +2179,294 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
         List<Integer> vertices,
         double recoveryThreshold,
         double bestModelProportion) {
+      return identifyBestModel(TimeAxis.ofTimes(x), y, yMean, vertices,
+          recoveryThreshold, bestModelProportion);
+    }
 
-      // making a copy to guarantee no external changes.
-      List<Integer> tmpVertices = Lists.newArrayList(vertices);
+    public Model identifyBestModel(TimeAxis axis,
+        double[] y,
+        double yMean,
+        List<Integer> vertices,
+        double recoveryThreshold,
+        double bestModelProportion) {
+      double[] x = axis.times;
+      int nObs = y.length;
+      int numVertices = vertices.size();
+      int numModels = numVertices - 1;
+      initModelBuffers(nObs, numVertices);
+      for (int i = 0; i < numVertices; i++) {
+        modelWorkVertices[i] = vertices.get(i);
+      }
 
-      // generates all the possible models and store their properties.
-      int modelsCount  = 0;
-      ModelNormal[] models = new ModelNormal[tmpVertices.size() - 1];
-      for (int i = tmpVertices.size(); i >= 2; i--) {
-        models[modelsCount] = new ModelNormal(tmpVertices, x, y, yMean);
+      // generates all the possible models in place and store their
+      // properties, one row per model.
+      int modelsCount = 0;
+      for (int i = numVertices; i >= 2; i--) {
+        evaluateModel(axis, y, yMean, modelsCount, i);
 
         if (i > 2) {
-          int index = identifyWeakestVertex(x, y, models[modelsCount].yFitted,
-              tmpVertices, models[modelsCount].slopes, recoveryThreshold);
-          tmpVertices.remove(index);
+          int index = identifyWeakestVertex(x, y, modelsCount, i,
+              recoveryThreshold);
+          System.arraycopy(modelWorkVertices, index + 1, modelWorkVertices,
+              index, i - index - 1);
           modelsCount++;
         }
       }
 
-      Model bestModel = chooseBestModel(models, recoveryThreshold,
+      int best = chooseBestModel(numModels, recoveryThreshold,
           bestModelProportion);
-      if (bestModel == null) {
+      if (best == -1) {
         // if no suitable model was found, then use the one with minimum
         // f-statistic.
-        int indexMinFStat = 0;
+        best = 0;
         for (int i = 0; i < modelsCount; i++) {
-          if (models[i].fStat < models[indexMinFStat].fStat) {
-            indexMinFStat = i;
+          if (modelFStats[i] < modelFStats[best]) {
+            best = i;
           }
         }
-        return models[indexMinFStat];
       }
-      return bestModel;
+      return new ModelNormal(axis, y, yMean, best, modelWorkVertices.length);
+    }
+
+    /**
+     * Grows the buffers of identifyBestModel() so they can hold the
+     * numVertices - 1 candidate models of a series of nObs observations. They
+     * are only reallocated when a larger series or more vertices show up.
+     */
+    private void initModelBuffers(int nObs, int numVertices) {
+      int numModels = numVertices - 1;
+      if (modelFitted.length < numModels * nObs) {
+        modelFitted = new double[numModels * nObs];
+      }
+      if (modelWorkVertices.length < numVertices) {
+        modelVertices = new int[numModels * numVertices];
+        modelNumVertices = new int[numModels];
+        modelSlopes = new double[numModels * numModels];
+        modelIntercepts = new double[numModels * numModels];
+        modelPValues = new double[numModels];
+        modelFStats = new double[numModels];
+        modelRanges = new double[numModels];
+        modelWorkVertices = new int[numVertices];
+      }
+    }
+
+    /**
+     * Fits the model made of the first numVertices vertices of
+     * modelWorkVertices and stores it in the given row of the model buffers.
+     * This does in place what the ModelNormal constructor does.
+     */
+    private void evaluateModel(TimeAxis axis,
+        double[] y,
+        double yMean,
+        int model,
+        int numVertices) {
+      double[] x = axis.times;
+      int nObs = y.length;
+      int vertexRow = model * modelWorkVertices.length;
+      int segmentRow = model * (modelWorkVertices.length - 1);
+      int fittedRow = model * nObs;
+
+      // sets the slopes and intercepts.
+      initPathBuffers(numVertices - 1);
+      modelBand[0] = y;
+      fitPaths(axis, modelWorkVertices, numVertices, modelBand, 1, pathSlopes,
+          pathIntercepts);
+      modelBand[0] = null;
+      System.arraycopy(modelWorkVertices, 0, modelVertices, vertexRow,
+          numVertices);
+      System.arraycopy(pathSlopes, 0, modelSlopes, segmentRow,
+          numVertices - 1);
+      System.arraycopy(pathIntercepts, 0, modelIntercepts, segmentRow,
+          numVertices - 1);
+      modelNumVertices[model] = numVertices;
+
+      // calculates the fitted values for this model.
+      Arrays.fill(modelFitted, fittedRow, fittedRow + nObs, 0.0);
+      for (int i = 0; i < numVertices - 1; i++) {
+        int begin = modelWorkVertices[i];
+        int end = modelWorkVertices[i + 1];
+        double slope = pathSlopes[i];
+        double intercept = pathIntercepts[i];
+        for (int j = begin; j <= end; j++) {
+          modelFitted[fittedRow + j] = (x[j] - x[begin]) * slope + intercept;
+        }
+      }
+
+      // calculate the p-value and f-statistic of the model.
+      double sumOfSquaresTotal = 0.0;
+      double sumOfSquaresResidual = 0.0;
+      double yMax = modelFitted[fittedRow];
+      double yMin = modelFitted[fittedRow];
+      for (int i = 0; i < nObs; i++) {
+        double fitted = modelFitted[fittedRow + i];
+        sumOfSquaresTotal += (y[i] - yMean) * (y[i] - yMean);
+        sumOfSquaresResidual += (y[i] - fitted) * (y[i] - fitted);
+        yMax = Math.max(yMax, fitted);
+        yMin = Math.min(yMin, fitted);
+      }
+      modelFStats[model] = fStatistic(sumOfSquaresTotal, sumOfSquaresResidual,
+          numVertices, nObs);
+      modelPValues[model] = pValue(modelFStats[model], numVertices, nObs);
+
+      // pre-calculates the range of the fitted values for use in
+      // checkSlopes().
+      modelRanges[model] = yMax - yMin;
+    }
+
+    /**
+     * Grows pathSlopes and pathIntercepts so they can hold numSegments values.
+     */
+    private void initPathBuffers(int numSegments) {
+      if (pathSlopes.length < numSegments) {
+        pathSlopes = new double[numSegments];
+      }
+      if (pathIntercepts.length < numSegments) {
+        pathIntercepts = new double[numSegments];
+      }
+    }
+
+    /**
+     * The same as identifyWeakestVertex() for the model stored in the given
+     * row of the model buffers, whose fitted values are modified in the same
+     * way.
+     */
+    private int identifyWeakestVertex(double[] x,
+        double[] y,
+        int model,
+        int numVertices,
+        double recoveryThreshold) {
+      int nObs = y.length;
+      int numSegments = numVertices - 1;
+      int vertexRow = model * modelWorkVertices.length;
+      int segmentRow = model * (modelWorkVertices.length - 1);
+      int fittedRow = model * nObs;
+
+      double yMax = modelFitted[fittedRow];
+      double yMin = modelFitted[fittedRow];
+      for (int i = 1; i < nObs; i++) {
+        yMax = Math.max(yMax, modelFitted[fittedRow + i]);
+        yMin = Math.min(yMin, modelFitted[fittedRow + i]);
+      }
+
+      boolean runMSE = true;
+      int weakestIndex = -1;
+
+      int biggestRecoveryIndex = -1; //which one has the largest slopes
+      double largestScaledSlope = -1;
+      for (int i = 0; i < numSegments; i++) {
+        double slope = modelSlopes[segmentRow + i];
+        double scaledSlope = Math.abs(slope) / (yMax - yMin);
+        if (slope < 0.0) {
+          if (scaledSlope > largestScaledSlope) {
+            biggestRecoveryIndex = i;
+            largestScaledSlope = scaledSlope;
+          }
+        }
+      }
+
+      // check against recovery threshold
+      // there is a violating segment
+      if (largestScaledSlope > recoveryThreshold) {
+        int violatorIdx = modelVertices[vertexRow + biggestRecoveryIndex + 1];
+
+        weakestIndex = biggestRecoveryIndex + 1;
+
+        if (biggestRecoveryIndex + 1 == numSegments) {
+          // the violator is the second to last segment
+          modelFitted[fittedRow + violatorIdx] =
+              modelFitted[fittedRow + violatorIdx - 1];
+
+          runMSE = true;
+        } else {
+          // other violators
+          double leftX = x[violatorIdx - 1];
+          double rightX = x[violatorIdx + 1];
+          double leftY = y[violatorIdx - 1];
+          double rightY = y[violatorIdx + 1];
+          double thisX = x[violatorIdx];
+
+          modelFitted[fittedRow + violatorIdx] =
+              (rightY - leftY) / (rightX - leftX) * (thisX - leftX) + leftY;
+
+          runMSE = false;
+        }
+      }
+
+      // if the criterion of recovery rate did not eliminate a vertex, then
+      // use the criterion of vertex that increases the MSE as minimum as
+      // possible.
+      if (runMSE) {
+        double smallestMSE = 0.0;
+        for (int i = 1; i < numVertices - 1; i++) {
+          int begin = modelVertices[vertexRow + i - 1];
+          int end = modelVertices[vertexRow + i + 1];
+          double yBegin = modelFitted[fittedRow + begin];
+          double slope = (modelFitted[fittedRow + end] - yBegin)
+              / (x[end] - x[begin]);
+          double mse = 0.0;
+          for (int j = begin; j <= end; j++) {
+            double tmp = y[j] - ((x[j] - x[begin]) * slope + yBegin);
+            mse += tmp * tmp;
+          }
+          mse /= (x[end] - x[begin]);
+
+          if (1 == i || smallestMSE > mse) {
+            smallestMSE = mse;
+            weakestIndex = i;
+          }
+        }
+      }
+
+      return weakestIndex;
+    }
+
+    /**
+     * The same as chooseBestModel() for the first numModels models of the
+     * model buffers. Returns the row of the best model or -1 if none of them
+     * is suitable.
+     */
+    private int chooseBestModel(int numModels,
+        double recoveryThreshold,
+        double bestModelProportion) {
+      int segmentStride = modelWorkVertices.length - 1;
+      int count = 0;
+      while (true) {
+        int index = bestModelByPValue(modelPValues, numModels,
+            bestModelProportion);
+        // if no suitable model was found, then exit and return -1.
+        if (-1 == index) {
+          break;
+        } else {
+          // if the model has a p-value within the threshold and has valid
+          // slopes, then use this one.
+          boolean validSlopes = true;
+          for (int i = 0; i < modelNumVertices[index] - 1; i++) {
+            double slope = modelSlopes[index * segmentStride + i];
+            if (slope < 0.0 && recoveryThreshold
+                < Math.abs(slope / modelRanges[index])) {
+              validSlopes = false;
+              break;
+            }
+          }
+          if (validSlopes) {
+            return index;
+          } else {
+            // if the model was not suitable, then change its p-value and
+            // f-statistic so it wont be chosen again.
+            modelPValues[index] = 1.0;
+            modelFStats[index] = 0.0;
+          }
+
+          // to avoid infinity loop. If no model was truly suitable, then exit
+          // and return -1.
+          if (count > numModels) {
+            break;
+          }
+        }
+        count++;
+      }
+
+      return -1;
     }
 
     /**
@@ -1221,9 +2556,6 @@ public class LandTrendr { // extends ImageConstructor<LandTrendr.Args> {
       EEArray.Builder result;
 
       result = EEArray.builder(PixelType.DOUBLE, 4, x.length);
-      for (int i = 0; i < vertices.size(); i++) {
-        result.setDouble(1.0, vertices.get(i));
-      }
       int offset = 0;
       for (int i = 0; i < x.length; i++) {
         result.setDouble(x[i], offset++);
@@ -2,6 +2,7 @@ package net.larse.lcms.algorithms;
 
 import com.google.common.primitives.Doubles;
 import com.google.common.primitives.Ints;
+import com.google.earthengine.api.task.SizeOf;
 import org.apache.commons.math.stat.descriptive.moment.Mean;
 import org.apache.commons.math.stat.descriptive.moment.StandardDeviation;
 import org.apache.commons.math.stat.regression.SimpleRegression;
@@ -178,6 +179,18 @@ public class VCT {
     allocateArrays();
   }
 
+  /**
+   * Returns an (approximate) upper bound on the heap used by the arrays of an
+   * instance created for the given maximum number of years.
+   */
+  public static long heapSize(int nYears) {
+    return 9 * SizeOf.array(SizeOf.INT * nYears)
+           + 8 * SizeOf.array(SizeOf.DOUBLE * nYears)
+           + 2 * SizeOf.array(SizeOf.DOUBLE * N_BANDS)
+           + SizeOf.array(SizeOf.PTR * N_BANDS)
+           + N_BANDS * SizeOf.array(SizeOf.DOUBLE * nYears);
+  }
+
   /**
    * Allocate space for all arrays so we can reuse these containers for all
    * pixels. This is predicated on setting a maximum number of possible years
@@ -1,20 +1,19 @@
 package net.larse.lcms.algorithms;
 
-import it.unimi.dsi.fastutil.ints.IntArrayList;
+import com.google.earthengine.api.task.SizeOf;
+import com.google.common.base.Preconditions;
 import net.larse.lcms.helper.AlgorithmBase;
-import org.apache.commons.math.stat.regression.OLSMultipleLinearRegression;
-import org.ejml.data.DenseMatrix64F;
-import org.ejml.ops.CommonOps;
-import org.ejml.simple.SimpleMatrix;
+import net.larse.lcms.helper.RegionGrowing;
 
 import java.util.Arrays;
 /**
  * Implements the VeRDET change detection:
  * {citation is XXX}
  *
- * This implementation only implement the change analysis, no spatial segmentation
- * is implemented in this class. I am considering spatial segmentation as a preprocessing
- * step to achieve spatial cohesive pixel blocks.
+ * getResult() implements the change analysis of a single pixel. Spatial segmentation is
+ * done as a preprocessing step to achieve spatially cohesive pixel blocks: with
+ * maxSegmentPixels > 1, getResults() segments a tile with RegionGrowing and gives the
+ * scores of the mean series of each segment to all of its pixels.
  *
  * @auther Zhiqiang Yang, 04/1/2015
  *
@@ -50,33 +49,94 @@ public final class Verdet {
     @Doc(help = "Maximum number of runs for convergence.")
     @Optional
     int nRuns = 100;
+
+    @Doc(help = "Largest change between consecutive series, relative to the "
+        + "range of the series, for which a warm start is used.")
+    @Optional
+    double warmStartChange = 0.03;
+
+    @Doc(help = "Largest number of pixels of a segment of getResults(); 1 scores "
+        + "each pixel on its own.")
+    @Optional
+    int maxSegmentPixels = 1;
+
+    @Doc(help = "Largest root mean square difference between the series of a pixel "
+        + "and the mean series of its segment.")
+    @Optional
+    double segmentThreshold = 0.01;
+
+    @Doc(help = "Maximum number of refits of the piecewise linear model.")
+    @Optional
+    int maxPiecewiseRuns = 100;
   }
   private final Args args;
 
+  // the segmentation of getResults(), if maxSegmentPixels > 1, and the series
+  // of the band of the pixel or segment being scored.
+  private RegionGrowing segmentation;
+  private double[] series = new double[0];
+  // the mean series of all the bands of a segment, and the scores and
+  // diagnostics of the series scored by getResults().
+  private double[] segmentSeries = new double[0];
+  private double[] scores = new double[0];
+  private int[] codes = new int[0];
+
   private int size;
   double[] T1;
   private int[] C;
   private int[] cc;
   private double[] g;
   private double[] O;
-  private OLSMultipleLinearRegression ols;
-
-  private DenseMatrix64F A;
-  private DenseMatrix64F AtA;
-  private DenseMatrix64F ataClone;
-  private DenseMatrix64F f;
-  private DenseMatrix64F Atf;
-  private DenseMatrix64F u;
-  private DenseMatrix64F u1;
+  // the knots of piecewiseLinear(), followed by size.
+  private int[] knots;
+
+  // Workspace of tv1DMany(): the centered series, the current and previous
+  // solutions, the total variation weights, the cumulative sum of the
+  // solution, and the three bands of the Cholesky factor of the system.
+  // piecewiseLinear() reuses w for the values at the knots, and diag and
+  // sub1 for the two bands of its tridiagonal system.
+  private double[] f;
+  private double[] u;
+  private double[] u1;
+  private double[] weights;
+  private double[] w;
+  private double[] diag;
+  private double[] sub1;
+  private double[] sub2;
+
+  // Warm start (see setWarmStart()): the converged solution and the centered
+  // series of the previous call of tv1DMany(), if it converged.
+  private boolean warmStart;
+  private boolean hasPrevious;
+  private double[] uPrevious;
+  private double[] fPrevious;
+  // the number of iterations of the last call of tv1DMany(), and whether it
+  // was warm started.
+  private int iterations;
+  private boolean warmStarted;
+
+  // Diagnostics: whether the last call of tv1DMany() converged, the number
+  // of refits of the last call of piecewiseLinear() and whether it
+  // converged, and the histograms of the iterations and refits of all the
+  // calls of getResult() since the last resetDiagnostics() (see
+  // getIterationHistogram()).
+  private boolean converged;
+  private int piecewiseIterations;
+  private boolean piecewiseConverged;
+  private final int[] iterationHistogram;
+  private final int[] piecewiseHistogram;
+  private int numNotConverged;
+  private int numPiecewiseNotConverged;
 
   public Verdet() {
     this(new Args());
   }
 
   public Verdet(Args args) {
+    Preconditions.checkArgument(args.nRuns >= 1 && args.maxPiecewiseRuns >= 1);
     this.args = args;
-    ols = new OLSMultipleLinearRegression();
-    ols.setNoIntercept(true);
+    this.iterationHistogram = new int[args.nRuns + 1];
+    this.piecewiseHistogram = new int[args.maxPiecewiseRuns + 1];
   }
 
   /**
@@ -84,6 +144,16 @@ public final class Verdet {
    * @param a, scores calculated in verdet
    */
   public double[] getResult(double[] a) {
+    double[] score = new double[a.length];
+    getResult(a, score, 0);
+    return score;
+  }
+
+  /**
+   * Same as getResult(), which writes the scores of a to
+   * score[offset .. offset + a.length - 1] instead of a new array.
+   */
+  private void getResult(double[] a, double[] score, int offset) {
     init(a.length);
 
     //Fixe negative scores
@@ -93,14 +163,163 @@ public final class Verdet {
 
     double[] X = piecewiseLinear(a);
 
-    double[] score = new double[a.length];
-    for (int i = 1; i < score.length; i++) {
-      score[i] = X[i] - X[i-1];
+    iterationHistogram[iterations]++;
+    piecewiseHistogram[piecewiseIterations]++;
+    if (!converged) {
+      numNotConverged++;
+    }
+    if (!piecewiseConverged) {
+      numPiecewiseNotConverged++;
     }
 
-    return score;
+    score[offset] = 0;
+    for (int i = 1; i < a.length; i++) {
+      score[offset + i] = X[i] - X[i-1];
+    }
   }
 
+  /**
+   * Computes the verdet scores of all the pixels of a tile, and returns the
+   * number of series that were scored. The tile and the output are band
+   * sequential: observation i of pixel p = y * width + x is at
+   * tile[i * width * height + p], and so is its score in output. If
+   * maxSegmentPixels > 1, the pixels are first grouped into segments (see
+   * RegionGrowing), and the scores of the mean series of each segment are
+   * given to all of its pixels. The tile is not modified.
+   */
+  public int getResults(double[] tile, int width, int height, int nObs,
+      double[] output) {
+    return getResults(tile, width, height, 1, nObs, output, null);
+  }
+
+  /**
+   * Same as getResults(), which also writes two diagnostic bands, if
+   * diagnostics is not null (see the multi-band getResults()).
+   */
+  public int getResults(double[] tile, int width, int height, int nObs,
+      double[] output, int[] diagnostics) {
+    return getResults(tile, width, height, 1, nObs, output, diagnostics);
+  }
+
+  /**
+   * Same as getResults(), for a tile of nBands indices (e.g. NDMI, NBR and
+   * NDVI) of nObs observations each, which are all scored in the same pass:
+   * observation i of band b of pixel p is at
+   * tile[(b * nObs + i) * width * height + p], and so is its score in
+   * output. Segments are grown on the series of all the bands, so that all
+   * the bands of a pixel share its segment. If diagnostics is not null, it
+   * gets two diagnostic bands per band: the number of iterations of
+   * tv1DMany() and the number of refits of piecewiseLinear() of band b of
+   * each pixel (at diagnostics[2 * b * width * height + p] and
+   * diagnostics[(2 * b + 1) * width * height + p]), each being negative if
+   * the loop was stopped by its cap (nRuns or maxPiecewiseRuns) before
+   * converging.
+   */
+  public int getResults(double[] tile, int width, int height, int nBands,
+      int nObs, double[] output, int[] diagnostics) {
+    int numPixels = width * height;
+    int bandSize = nObs * numPixels;
+    Preconditions.checkArgument(nBands >= 1
+        && tile.length >= nBands * bandSize
+        && output.length >= nBands * bandSize
+        && (diagnostics == null
+            || diagnostics.length >= 2 * nBands * numPixels));
+    if (series.length != nObs) {
+      series = new double[nObs];
+    }
+    // the last series of the previous tile is not a neighbour of the first
+    // one of this tile.
+    resetWarmStart();
+
+    if (args.maxSegmentPixels <= 1) {
+      if (scores.length < nObs) {
+        scores = new double[nObs];
+      }
+      // the bands are scored one after the other, so that the previous
+      // series of a warm start is the one of the same band.
+      for (int b = 0; b < nBands; b++) {
+        for (int p = 0; p < numPixels; p++) {
+          if (p % width == 0) {
+            // nor is the last series of the previous band or row.
+            resetWarmStart();
+          }
+          int offset = b * bandSize + p;
+          for (int i = 0; i < nObs; i++) {
+            series[i] = tile[offset + i * numPixels];
+          }
+          getResult(series, scores, 0);
+          for (int i = 0; i < nObs; i++) {
+            output[offset + i * numPixels] = scores[i];
+          }
+          if (diagnostics != null) {
+            diagnostics[2 * b * numPixels + p] = getIterationCode();
+            diagnostics[(2 * b + 1) * numPixels + p] = getPiecewiseCode();
+          }
+        }
+      }
+      return nBands * numPixels;
+    }
+
+    if (segmentation == null) {
+      segmentation =
+          new RegionGrowing(args.segmentThreshold, args.maxSegmentPixels);
+    }
+    if (segmentSeries.length != nBands * nObs) {
+      segmentSeries = new double[nBands * nObs];
+    }
+    // the bands of a segment are its scores and diagnostics at index
+    // segment * nBands + b.
+    int numSegments =
+        segmentation.segment(tile, width, height, nBands * nObs);
+    if (scores.length < numSegments * nBands * nObs) {
+      scores = new double[numSegments * nBands * nObs];
+    }
+    if (codes.length < 2 * numSegments * nBands) {
+      codes = new int[2 * numSegments * nBands];
+    }
+    for (int b = 0; b < nBands; b++) {
+      resetWarmStart();
+      for (int segment = 0; segment < numSegments; segment++) {
+        int index = segment * nBands + b;
+        segmentation.getMean(segment, segmentSeries);
+        System.arraycopy(segmentSeries, b * nObs, series, 0, nObs);
+        getResult(series, scores, index * nObs);
+        codes[2 * index] = getIterationCode();
+        codes[2 * index + 1] = getPiecewiseCode();
+      }
+    }
+    for (int p = 0; p < numPixels; p++) {
+      int segment = segmentation.getLabel(p);
+      for (int b = 0; b < nBands; b++) {
+        int index = segment * nBands + b;
+        int offset = b * bandSize + p;
+        for (int i = 0; i < nObs; i++) {
+          output[offset + i * numPixels] = scores[index * nObs + i];
+        }
+        if (diagnostics != null) {
+          diagnostics[2 * b * numPixels + p] = codes[2 * index];
+          diagnostics[(2 * b + 1) * numPixels + p] = codes[2 * index + 1];
+        }
+      }
+    }
+    return numSegments * nBands;
+  }
+
+  /**
+   * Returns an (approximate) upper bound on the heap used by an instance to
+   * score a series of the given size, which is the arrays kept by init().
+   */
+  public static long heapSize(int size) {
+    return 13 * SizeOf.array(SizeOf.DOUBLE * size)
+           + 3 * SizeOf.array(SizeOf.INT * (size + 1));
+  }
+
+  /**
+   * Allocates the workspace for series of the given size, unless it already
+   * has that size. Nothing else depends on the size: tv1DMany() works on the
+   * structure of its operators and never builds them, so there is nothing
+   * per size to precompute or to share between instances.
+   */
   public void init(int size) {
     if (this.size == size) {
       return;
@@ -112,14 +331,143 @@ public final class Verdet {
     cc = new int[size];
     g = new double[size];
     O = new double[size];
+    knots = new int[size + 1];
+
+    f = new double[size];
+    u = new double[size];
+    u1 = new double[size];
+    weights = new double[size];
+    w = new double[size];
+    diag = new double[size];
+    sub1 = new double[size];
+    sub2 = new double[size];
+
+    uPrevious = new double[size];
+    fPrevious = new double[size];
+    hasPrevious = false;
+  }
+
+  /**
+   * Turns the warm start mode on or off. In this mode, tv1DMany() starts
+   * from the converged solution of the previous series instead of the series
+   * itself, which takes fewer iterations when consecutive series are similar
+   * (e.g. neighbouring pixels of a tile processed in order). It falls back to
+   * a cold start when the previous series did not converge, has another
+   * size, or differs from the new one by more than warmStartChange times its
+   * range. The reweighting keeps differences that are flat in the starting
+   * solution flat, so a warm start can miss a break that a cold start finds;
+   * the default threshold is small enough not to change the scores of the
+   * test stack, larger ones trade accuracy for fewer iterations.
+   */
+  public void setWarmStart(boolean warmStart) {
+    this.warmStart = warmStart;
+    this.hasPrevious = false;
+  }
+
+  /**
+   * Forgets the previous series, so the next one is cold started (e.g. at
+   * the beginning of a row or a tile).
+   */
+  public void resetWarmStart() {
+    hasPrevious = false;
+  }
+
+  /**
+   * Returns the number of iterations of the last call of tv1DMany().
+   */
+  public int getIterations() {
+    return iterations;
+  }
+
+  /**
+   * Returns true if the last call of tv1DMany() was warm started.
+   */
+  public boolean isWarmStarted() {
+    return warmStarted;
+  }
+
+  /**
+   * Returns true if the last call of tv1DMany() converged within nRuns
+   * iterations.
+   */
+  public boolean isConverged() {
+    return converged;
+  }
+
+  /**
+   * Returns the number of refits of the last call of piecewiseLinear().
+   */
+  public int getPiecewiseIterations() {
+    return piecewiseIterations;
+  }
+
+  /**
+   * Returns true if the last call of piecewiseLinear() converged within
+   * maxPiecewiseRuns refits.
+   */
+  public boolean isPiecewiseConverged() {
+    return piecewiseConverged;
+  }
+
+  /**
+   * Returns the histogram of the iterations of tv1DMany() of the calls of
+   * getResult() since the last resetDiagnostics(): element n is the number
+   * of series that took n iterations, for n = 0 to nRuns. The array is
+   * owned by this instance.
+   */
+  public int[] getIterationHistogram() {
+    return iterationHistogram;
+  }
+
+  /**
+   * Returns the histogram of the refits of piecewiseLinear(), as
+   * getIterationHistogram() does for the iterations of tv1DMany().
+   */
+  public int[] getPiecewiseHistogram() {
+    return piecewiseHistogram;
+  }
 
-    A = new DenseMatrix64F(size, size);
-    AtA = new DenseMatrix64F(size, size);
-    ataClone = new DenseMatrix64F(size, size);
-    f = new DenseMatrix64F(size, 1);
-    Atf = new DenseMatrix64F(size, 1);
-    u = new DenseMatrix64F(size, 1);
-    u1 = new DenseMatrix64F(size, 1);
+  /**
+   * Returns the number of calls of getResult() since the last
+   * resetDiagnostics() whose tv1DMany() did not converge.
+   */
+  public int getNumNotConverged() {
+    return numNotConverged;
+  }
+
+  /**
+   * Returns the number of calls of getResult() since the last
+   * resetDiagnostics() whose piecewiseLinear() did not converge.
+   */
+  public int getNumPiecewiseNotConverged() {
+    return numPiecewiseNotConverged;
+  }
+
+  /**
+   * Clears the histograms and counts of the diagnostics, e.g. at the
+   * beginning of a run.
+   */
+  public void resetDiagnostics() {
+    Arrays.fill(iterationHistogram, 0);
+    Arrays.fill(piecewiseHistogram, 0);
+    numNotConverged = 0;
+    numPiecewiseNotConverged = 0;
+  }
+
+  /**
+   * Returns the diagnostic value of the iterations of the last call of
+   * tv1DMany() (see getResults()).
+   */
+  private int getIterationCode() {
+    return converged ? iterations : -iterations;
+  }
+
+  /**
+   * Returns the diagnostic value of the refits of the last call of
+   * piecewiseLinear() (see getResults()).
+   */
+  private int getPiecewiseCode() {
+    return piecewiseConverged ? piecewiseIterations : -piecewiseIterations;
   }
 
   public double[] piecewiseLinear(double[] B) {
@@ -136,7 +484,12 @@ public final class Verdet {
 
     //    double[] YY = B.clone();
 
+    piecewiseIterations = 0;
     while (!Arrays.equals(T1, T)) {
+      if (piecewiseIterations == args.maxPiecewiseRuns) {
+        break;
+      }
+      piecewiseIterations++;
       // Dont use clone.
       System.arraycopy(T, 0, T1, 0, size);
 
@@ -147,8 +500,8 @@ public final class Verdet {
       C[0] = 1;
       C[T.length-1] = 1;
 
-      IntArrayList f = new IntArrayList();
-      f.add(0); //add first element
+      int numKnots = 0;
+      knots[numKnots++] = 0; //add first element
 
       for (int i = 0; i < size - 1; i++) {
         double dT = T[i+1] - T[i];
@@ -160,7 +513,7 @@ public final class Verdet {
           double R = 1 - (numerator + dx) / denominator;
           if (R > 0.025) {
             C[i + 1] = 1;
-            f.add(i + 1);
+            knots[numKnots++] = i + 1;
           }
         }
         if (i > 0) {
@@ -169,126 +522,246 @@ public final class Verdet {
       }
 
       //Add the last elements
-      f.add(size - 1);
-      f.add(size);
+      knots[numKnots++] = size - 1;
+      knots[numKnots] = size;
       cc[size - 1] = cc[size - 2] + C[size - 1];
 
       for (int i = 0; i < g.length; i++) {
-        g[i] = 1.0* (i - f.get(cc[i])) / (f.get(cc[i]+1) - f.get(cc[i]));
+        g[i] = 1.0* (i - knots[cc[i]]) / (knots[cc[i]+1] - knots[cc[i]]);
       }
 
-      //      int aSize = B.length * (cc[cc.length-1] + 1);
-      //      double[] A = new double[aSize];
-      //
-      //      for (int i = 0; i < B.length; i++) {
-      //        A[cc[i] * B.length + N[i]] = 1 - g[i];
-      //
-      //        if (i < B.length-1) {
-      //          A[(cc[i]+1) * B.length + N[i]] = g[i];
-      //        }
-      //      }
-
-      //int aSize = B.length * (cc[cc.length-1] + 1);
+      // The design matrix A has a row per observation and a column per knot,
+      // row i having 1 - g[i] at column cc[i] and g[i] at column cc[i] + 1
+      // (except for the last row). So A'A is tridiagonal, and the least
+      // squares fit of B (with no intercept) is solved in O(size) without
+      // forming A.
       int nA = cc[size - 1] + 1;
-      double[][] A = new double[size][nA];
-
+      Arrays.fill(diag, 0, nA, 0.0);
+      Arrays.fill(sub1, 0, nA, 0.0);
+      Arrays.fill(w, 0, nA, 0.0);
       for (int i = 0; i < size; i++) {
-        int idx = cc[i] * size + i;
-        int row = idx % size;
-        int col = idx / size;
-
-        A[row][col] = 1 - g[i];
+        int col = cc[i];
+        double left = 1 - g[i];
+        diag[col] += left * left;
+        w[col] += left * B[i];
         if (i < size-1) {
-          A[row][col+1] = g[i];
+          diag[col + 1] += g[i] * g[i];
+          sub1[col] += left * g[i];
+          w[col + 1] += g[i] * B[i];
         }
       }
+      solveTridiagonal(nA);
 
-      ols.newSampleData(B, A);
-      double[] b = ols.estimateRegressionParameters();
-
-      // It's probably worth doing this simple multiply by hand to avoid creating 2 new objects.
-      // Especially since you just grab the data out of the
-      SimpleMatrix st = new SimpleMatrix(A).mult(new SimpleMatrix(b.length, 1, true, b));
-      T = st.getMatrix().getData();
+      // T = A * b, with the two non-zero elements of each row.
+      for (int i = 0; i < size; i++) {
+        int col = cc[i];
+        T[i] = (1 - g[i]) * w[col];
+        if (i < size-1) {
+          T[i] += g[i] * w[col + 1];
+        }
+      }
     }
 
+    piecewiseConverged = Arrays.equals(T1, T);
     return T;
   }
 
+  /**
+   * Solves the symmetric positive definite tridiagonal system of size n whose
+   * diagonal is in diag and subdiagonal in sub1 for the right hand side in
+   * w, with a Cholesky decomposition. The solution replaces w, and diag and
+   * sub1 are overwritten by the factor.
+   */
+  private void solveTridiagonal(int n) {
+    for (int i = 0; i < n; i++) {
+      double pivot = diag[i];
+      if (i >= 1) {
+        sub1[i - 1] /= diag[i - 1];
+        pivot -= sub1[i - 1] * sub1[i - 1];
+      }
+      diag[i] = Math.sqrt(pivot);
+    }
+    for (int i = 0; i < n; i++) {
+      double sum = w[i];
+      if (i >= 1) {
+        sum -= sub1[i - 1] * w[i - 1];
+      }
+      w[i] = sum / diag[i];
+    }
+    for (int i = n - 1; i >= 0; i--) {
+      double sum = w[i];
+      if (i + 1 < n) {
+        sum -= sub1[i] * w[i + 1];
+      }
+      w[i] = sum / diag[i];
+    }
+  }
+
   /**
    * The original implementation uses a multi-dimension array for X,
    * which does not see to be necessary, as each time it is only run on
    * single index.
    *
+   * Each iteration solves (A'A + D) u = A'f, where A is the size x size
+   * cumulative sum operator (A[j][i] = 1 for i <= j) and D the tridiagonal
+   * matrix of the total variation weights. Neither A nor A'A is formed:
+   * with w = A u, the cumulative sum of u, the system becomes
+   * (I + S'WS) w = f, where S is the second difference operator (with
+   * w[-1] = 0) and W the diagonal of the weights. Its matrix is pentadiagonal
+   * and positive definite, so it is solved in O(size) with a banded Cholesky
+   * decomposition, and u is recovered as the differences of w.
+   *
    * //TODO: variable names followed original matlab code, change to meaningful names
    *
    * @param X
    */
 
   public double[] tv1DMany(double[] X) {
+    //Orignal Matlab code use loop to iterate the multi-diemsional X
     for (int i = 0; i < size; i++) {
-      for (int j = 0; j < size; j++) {
-        A.set(j, i, i <= j ? 1.0 : 0);
-      }
+      f[i] = X[i] - X[0];
     }
 
-    CommonOps.multTransA(A, A, AtA);
-    copy(AtA, ataClone);
+    //initialize some initial variables
+    warmStarted = warmStart && hasPrevious && isCloseToPrevious();
+    if (warmStarted) {
+      // the previous solution is the first iterate, so a series that is
+      // already at its fixed point converges after one solve.
+      System.arraycopy(uPrevious, 0, u, 0, size);
+      System.arraycopy(uPrevious, 0, u1, 0, size);
+    } else {
+      System.arraycopy(f, 0, u, 0, size);
+      Arrays.fill(u1, Double.POSITIVE_INFINITY);
+    }
 
-    //Orignal Matlab code use loop to iterate the multi-diemsional X
-    for (int i = 0; i < size; i++) {
-      f.set(i, X[i] - X[0]);
+    converged = iterate();
+
+    hasPrevious = warmStart && converged;
+    if (hasPrevious) {
+      System.arraycopy(u, 0, uPrevious, 0, size);
+      System.arraycopy(f, 0, fPrevious, 0, size);
     }
 
-    CommonOps.multTransA(A, f, Atf);
+    //Integration U, adding f0 back in
+    double sum = 0;
+    for (int i = 0; i < size; i++) {
+      sum += u[i];
+      O[i] = sum + X[0];
+    }
 
-    //initialize some initial variables
-    copy(f, u);
-    CommonOps.set(u1, Double.POSITIVE_INFINITY);
+    return O;
+  }
 
+  /**
+   * Runs the iterations of tv1DMany() from the first iterate in u (and the
+   * previous one in u1), and returns true if they converged.
+   */
+  private boolean iterate() {
+    iterations = 0;
     for (int i=0; i < args.nRuns; i++) {
-      //System.out.println(i);
-
-      double prev = 0;
-      double curr = 0;
+      iterations++;
       for (int j = 0; j < size - 1; j++) {
-        curr = args.alpha / (1e-6 + Math.abs(u.get(j+1) - u.get(j)));
-        // Diagonal (L)
-        AtA.set(j, j, ataClone.get(j, j) + prev + curr);
-        // Off diagonals.
-        AtA.set(j,     j + 1, ataClone.get(j,     j + 1) - curr);
-        AtA.set(j + 1, j,     ataClone.get(j + 1, j    ) - curr);
-
-        prev = curr;
+        weights[j] = args.alpha / (1e-6 + Math.abs(u[j + 1] - u[j]));
+      }
+
+      solveTv();
+      u[0] = w[0];
+      for (int j = 1; j < size; j++) {
+        u[j] = w[j] - w[j - 1];
       }
-      AtA.set(size - 1, size - 1, ataClone.get(size - 1, size -1) + curr);
 
-      CommonOps.solve(AtA, Atf, u);
-      CommonOps.sub(u1, u, u1);
       // Have we reach convergence?
-      if (CommonOps.elementMaxAbs(u1) <= args.tolerance) {
-        break;
+      double maxChange = 0;
+      for (int j = 0; j < size; j++) {
+        maxChange = Math.max(maxChange, Math.abs(u1[j] - u[j]));
+      }
+      if (maxChange <= args.tolerance) {
+        return true;
       }
 
       //Original Matlab code, which may not be necessary here
       //if any(isnan(u)); u=u1; break; end;
-      copy(u, u1);
+      System.arraycopy(u, 0, u1, 0, size);
     }
+    return false;
+  }
 
-    //Integration U, adding f0 back in
-    CommonOps.mult(A, u, u1);
+  /**
+   * Returns true if the centered series differs from the previous one by at
+   * most warmStartChange times its range.
+   */
+  private boolean isCloseToPrevious() {
+    double min = f[0];
+    double max = f[0];
+    double maxDifference = 0;
     for (int i = 0; i < size; i++) {
-      O[i] = u1.get(i) + X[0];
+      min = Math.min(min, f[i]);
+      max = Math.max(max, f[i]);
+      maxDifference = Math.max(maxDifference, Math.abs(f[i] - fPrevious[i]));
     }
-
-    return O;
+    return maxDifference <= args.warmStartChange * (max - min);
   }
 
-  void copy(DenseMatrix64F a, DenseMatrix64F b) {
-    for( int i = 0; i < a.numRows; i++ ) {
-      for( int j = 0; j < a.numCols; j++ ) {
-          b.set(i, j, a.get(i, j));
+  /**
+   * Solves (I + S'WS) w = f (see tv1DMany()) for the current weights.
+   */
+  private void solveTv() {
+    // the bands of the matrix: sub1[i] is element (i + 1, i) and sub2[i]
+    // element (i + 2, i). Row j of S has -1, 2, -1 at columns j - 1, j, j + 1
+    // (the first one being dropped for j = 0), with weight weights[j].
+    Arrays.fill(diag, 1.0);
+    Arrays.fill(sub1, 0.0);
+    Arrays.fill(sub2, 0.0);
+    for (int j = 0; j < size - 1; j++) {
+      double weight = weights[j];
+      diag[j] += 4 * weight;
+      diag[j + 1] += weight;
+      sub1[j] -= 2 * weight;
+      if (j > 0) {
+        diag[j - 1] += weight;
+        sub1[j - 1] -= 2 * weight;
+        sub2[j - 1] += weight;
+      }
+    }
+
+    // banded Cholesky decomposition, in place: diag, sub1 and sub2 become the
+    // bands of the lower triangular factor.
+    for (int i = 0; i < size; i++) {
+      double pivot = diag[i];
+      if (i >= 2) {
+        sub2[i - 2] /= diag[i - 2];
+        pivot -= sub2[i - 2] * sub2[i - 2];
+      }
+      if (i >= 1) {
+        if (i >= 2) {
+          sub1[i - 1] -= sub2[i - 2] * sub1[i - 2];
+        }
+        sub1[i - 1] /= diag[i - 1];
+        pivot -= sub1[i - 1] * sub1[i - 1];
+      }
+      diag[i] = Math.sqrt(pivot);
+    }
+
+    // forward and backward substitutions.
+    for (int i = 0; i < size; i++) {
+      double sum = f[i];
+      if (i >= 1) {
+        sum -= sub1[i - 1] * w[i - 1];
+      }
+      if (i >= 2) {
+        sum -= sub2[i - 2] * w[i - 2];
+      }
+      w[i] = sum / diag[i];
+    }
+    for (int i = size - 1; i >= 0; i--) {
+      double sum = w[i];
+      if (i + 1 < size) {
+        sum -= sub1[i] * w[i + 1];
+      }
+      if (i + 2 < size) {
+        sum -= sub2[i] * w[i + 2];
       }
+      w[i] = sum / diag[i];
     }
   }
 }
@@ -0,0 +1,356 @@
+/*
+ * Copyright (c) 2015 Zhiqiang Yang.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.larse.lcms.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.earthengine.api.task.SizeOf;
+
+import java.util.Arrays;
+
+/**
+ * Computes many independent multivariate linear regressions via ordinary
+ * least squares, e.g. one per pixel of a tile. It does what an array of
+ * LinearLeastSquares would do, but the sums of all the regressions are kept
+ * in a few contiguous arrays and there is no object per regression.
+ *
+ * <p>The arrays are laid out as structures of arrays: element k of the sums
+ * of regression r is at k * numRegressions + r. Adding an observation whose
+ * x values are shared by all the regressions (e.g. the harmonic terms of an
+ * acquisition date, common to all the pixels of a tile) and solving all the
+ * regressions are loops over the regressions, innermost, which the JIT can
+ * vectorize. The small symmetric positive definite systems are solved with a
+ * Cholesky decomposition run for all the regressions together.
+ */
+public class BatchLinearLeastSquares implements SizeOf.Measurable {
+  // the smallest pivot of the Cholesky decomposition, relative to its
+  // diagonal element, for which a matrix is not considered singular
+  private static final double SINGULAR_PIVOT = 1e-12;
+
+  private static final long OBJ_SIZE =
+      SizeOf.object(8 * SizeOf.PTR + 3 * SizeOf.INT);
+
+  /**
+   * Returns an (approximate) upper bound on the heap size of a
+   * BatchLinearLeastSquares instance with the given dimensions.
+   */
+  public static long heapSize(int numX, int numY, int numRegressions) {
+    int numXX = numX * (numX + 1) / 2;
+    return OBJ_SIZE
+           + SizeOf.array(SizeOf.INT * numRegressions)
+           + SizeOf.array(SizeOf.DOUBLE * numRegressions)
+           + 2 * SizeOf.array(SizeOf.DOUBLE * numXX * numRegressions)
+           + SizeOf.array(SizeOf.DOUBLE * numX * numY * numRegressions)
+           + SizeOf.array(SizeOf.DOUBLE * numY * numRegressions)
+           + 2 * SizeOf.array(SizeOf.DOUBLE * numRegressions);
+  }
+
+  public final int numX;
+  public final int numY;
+  public final int numRegressions;
+
+  // the number of inputs and the sum of their weights, per regression
+  private final int[] numInputs;
+  private final double[] sumWeights;
+  // the lower triangle of xMat of each regression (see LinearLeastSquares)
+  private final double[] xSums;
+  // the elements of yMat of each regression
+  private final double[] ySums;
+  // the sums of y_i^2 of each regression
+  private final double[] y2Sums;
+
+  // workspace of getSolutions(): the Cholesky factors, and one value per
+  // regression.
+  private final double[] factors;
+  private final double[] sums;
+  private final boolean[] valid;
+
+  /**
+   * Creates numRegressions regressions with numX independent variables and
+   * numY dependent variables each.
+   */
+  public BatchLinearLeastSquares(int numX, int numY, int numRegressions) {
+    Preconditions.checkArgument(numX >= 1 && numY >= 1 && numRegressions >= 1);
+    this.numX = numX;
+    this.numY = numY;
+    this.numRegressions = numRegressions;
+    int numXX = numX * (numX + 1) / 2;
+    this.numInputs = new int[numRegressions];
+    this.sumWeights = new double[numRegressions];
+    this.xSums = new double[numXX * numRegressions];
+    this.ySums = new double[numX * numY * numRegressions];
+    this.y2Sums = new double[numY * numRegressions];
+    this.factors = new double[numXX * numRegressions];
+    this.sums = new double[numRegressions];
+    this.valid = new boolean[numRegressions];
+  }
+
+  @Override
+  public long heapSize() {
+    return heapSize(numX, numY, numRegressions);
+  }
+
+  /**
+   * Add one observation to the given regression, using numX values from x
+   * starting with xStart and numY values from y starting at yStart.
+   */
+  public void addInput(int regression, double[] x, int xStart, double[] y,
+      int yStart) {
+    addInput(regression, x, xStart, y, yStart, 1.0);
+  }
+
+  /**
+   * Same as above, with a non-negative weight (see
+   * LinearLeastSquares.addInput()).
+   */
+  public void addInput(int regression, double[] x, int xStart, double[] y,
+      int yStart, double weight) {
+    Preconditions.checkArgument(weight >= 0);
+    int n = numRegressions;
+    ++numInputs[regression];
+    sumWeights[regression] += weight;
+    int pos = 0;
+    for (int i = 0; i < numX; ++i) {
+      double xi = weight * x[xStart + i];
+      for (int i2 = 0; i2 <= i; ++i2) {
+        xSums[pos++ * n + regression] += xi * x[xStart + i2];
+      }
+    }
+    for (int j = 0; j < numY; ++j) {
+      double yj = y[yStart + j];
+      y2Sums[j * n + regression] += weight * yj * yj;
+    }
+    pos = 0;
+    for (int i = 0; i < numX; ++i) {
+      double xi = weight * x[xStart + i];
+      for (int j = 0; j < numY; ++j) {
+        ySums[pos++ * n + regression] += xi * y[yStart + j];
+      }
+    }
+  }
+
+  /**
+   * Add one observation to every regression. The numX x values, starting at
+   * xStart, are shared by all the regressions. Value j of regression r is at
+   * y[yStart + j * numRegressions + r]. If weights is not null, weights[r]
+   * is the weight of the observation in regression r (0 to leave it out).
+   */
+  public void addInputs(double[] x, int xStart, double[] y, int yStart,
+      double[] weights) {
+    int n = numRegressions;
+    Preconditions.checkArgument(weights == null || weights.length >= n);
+    for (int r = 0; r < n; ++r) {
+      ++numInputs[r];
+    }
+    if (weights == null) {
+      for (int r = 0; r < n; ++r) {
+        sumWeights[r] += 1.0;
+      }
+    } else {
+      for (int r = 0; r < n; ++r) {
+        Preconditions.checkArgument(weights[r] >= 0);
+        sumWeights[r] += weights[r];
+      }
+    }
+
+    // update xSums
+    int pos = 0;
+    for (int i = 0; i < numX; ++i) {
+      double xi = x[xStart + i];
+      for (int i2 = 0; i2 <= i; ++i2) {
+        double xx = x[xStart + i2];
+        int base = pos++ * n;
+        if (weights == null) {
+          for (int r = 0; r < n; ++r) {
+            xSums[base + r] += xi * xx;
+          }
+        } else {
+          for (int r = 0; r < n; ++r) {
+            xSums[base + r] += weights[r] * xi * xx;
+          }
+        }
+      }
+    }
+    // update y2Sums
+    for (int j = 0; j < numY; ++j) {
+      int base = j * n;
+      int yBase = yStart + j * n;
+      for (int r = 0; r < n; ++r) {
+        double yj = y[yBase + r];
+        y2Sums[base + r] += (weights == null ? 1.0 : weights[r]) * yj * yj;
+      }
+    }
+    // update ySums
+    pos = 0;
+    for (int i = 0; i < numX; ++i) {
+      double xi = x[xStart + i];
+      for (int j = 0; j < numY; ++j) {
+        int base = pos++ * n;
+        int yBase = yStart + j * n;
+        if (weights == null) {
+          for (int r = 0; r < n; ++r) {
+            ySums[base + r] += xi * y[yBase + r];
+          }
+        } else {
+          for (int r = 0; r < n; ++r) {
+            ySums[base + r] += weights[r] * xi * y[yBase + r];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Compute the results of all the regressions from the accumulated state.
+   * Coefficient i of dependent variable j of regression r is stored at
+   * results[(i * numY + j) * numRegressions + r], and if residuals is not
+   * null, the RMS residual (see LinearLeastSquares.getRmsResiduals()) of
+   * dependent variable j at residuals[j * numRegressions + r]. solved[r] is
+   * set to false when regression r had not enough inputs or a singular
+   * matrix, in which case its results and residuals are NaN. Returns the
+   * number of regressions that were solved.
+   */
+  public int getSolutions(double[] results, double[] residuals,
+      boolean[] solved) {
+    int n = numRegressions;
+    Preconditions.checkArgument(results.length >= numX * numY * n
+        && (residuals == null || residuals.length >= numY * n)
+        && solved.length >= n);
+    for (int r = 0; r < n; ++r) {
+      valid[r] = numInputs[r] >= numX;
+    }
+
+    // Cholesky decomposition xMat = L * transpose(L), the lower triangle of
+    // L being stored like xSums. A pivot that is not positive, or that is
+    // only roundoff compared to its diagonal element, means that the matrix
+    // is singular.
+    for (int i = 0; i < numX; ++i) {
+      int rowI = i * (i + 1) / 2;
+      for (int k = 0; k <= i; ++k) {
+        int rowK = k * (k + 1) / 2;
+        System.arraycopy(xSums, (rowI + k) * n, sums, 0, n);
+        for (int m = 0; m < k; ++m) {
+          int baseI = (rowI + m) * n;
+          int baseK = (rowK + m) * n;
+          for (int r = 0; r < n; ++r) {
+            sums[r] -= factors[baseI + r] * factors[baseK + r];
+          }
+        }
+        int base = (rowI + k) * n;
+        if (i == k) {
+          for (int r = 0; r < n; ++r) {
+            double pivot = sums[r];
+            boolean positive = pivot > SINGULAR_PIVOT * xSums[base + r];
+            valid[r] &= positive;
+            factors[base + r] = positive ? Math.sqrt(pivot) : 1.0;
+          }
+        } else {
+          int diagonal = (rowK + k) * n;
+          for (int r = 0; r < n; ++r) {
+            factors[base + r] = sums[r] / factors[diagonal + r];
+          }
+        }
+      }
+    }
+
+    for (int j = 0; j < numY; ++j) {
+      // forward substitution: L * z = yMat[*, j]
+      for (int i = 0; i < numX; ++i) {
+        int rowI = i * (i + 1) / 2;
+        System.arraycopy(ySums, (i * numY + j) * n, sums, 0, n);
+        for (int m = 0; m < i; ++m) {
+          int baseL = (rowI + m) * n;
+          int baseZ = (m * numY + j) * n;
+          for (int r = 0; r < n; ++r) {
+            sums[r] -= factors[baseL + r] * results[baseZ + r];
+          }
+        }
+        int diagonal = (rowI + i) * n;
+        int base = (i * numY + j) * n;
+        for (int r = 0; r < n; ++r) {
+          results[base + r] = sums[r] / factors[diagonal + r];
+        }
+      }
+      // backward substitution: transpose(L) * R[*, j] = z
+      for (int i = numX - 1; i >= 0; --i) {
+        int base = (i * numY + j) * n;
+        System.arraycopy(results, base, sums, 0, n);
+        for (int m = i + 1; m < numX; ++m) {
+          int baseL = (m * (m + 1) / 2 + i) * n;
+          int baseR = (m * numY + j) * n;
+          for (int r = 0; r < n; ++r) {
+            sums[r] -= factors[baseL + r] * results[baseR + r];
+          }
+        }
+        int diagonal = (i * (i + 1) / 2 + i) * n;
+        for (int r = 0; r < n; ++r) {
+          results[base + r] = sums[r] / factors[diagonal + r];
+        }
+      }
+
+      if (residuals != null) {
+        System.arraycopy(y2Sums, j * n, sums, 0, n);
+        for (int i = 0; i < numX; ++i) {
+          int base = (i * numY + j) * n;
+          for (int r = 0; r < n; ++r) {
+            sums[r] -= results[base + r] * ySums[base + r];
+          }
+        }
+        int base = j * n;
+        for (int r = 0; r < n; ++r) {
+          // due to roundoff, the sum could end up slightly negative
+          residuals[base + r] =
+              sums[r] <= 0 ? 0 : Math.sqrt(sums[r] / sumWeights[r]);
+        }
+      }
+    }
+
+    int count = 0;
+    for (int r = 0; r < n; ++r) {
+      solved[r] = valid[r];
+      if (valid[r]) {
+        ++count;
+        continue;
+      }
+      for (int k = 0; k < numX * numY; ++k) {
+        results[k * n + r] = Double.NaN;
+      }
+      if (residuals != null) {
+        for (int j = 0; j < numY; ++j) {
+          residuals[j * n + r] = Double.NaN;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Reset all the regressions to their no-inputs state.
+   */
+  public void reset() {
+    Arrays.fill(numInputs, 0);
+    Arrays.fill(sumWeights, 0);
+    Arrays.fill(xSums, 0);
+    Arrays.fill(ySums, 0);
+    Arrays.fill(y2Sums, 0);
+  }
+}
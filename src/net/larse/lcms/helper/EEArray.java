@@ -34,6 +34,14 @@ public class EEArray {
     this.array = array;
   }
 
+  public double getDouble(int offset) {
+    return array[offset];
+  }
+
+  public int length() {
+    return array.length;
+  }
+
   public static class Builder {
     private double[] array;
 
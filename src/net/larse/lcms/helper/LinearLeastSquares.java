@@ -30,6 +30,7 @@ import org.ejml.alg.dense.linsol.LinearSolverFactory;
 import org.ejml.data.DenseMatrix64F;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -39,7 +40,8 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
   private static final long serialVersionUID = 1;
 
   private static final long OBJ_SIZE =
-      SizeOf.object(SizeOf.BOOLEAN + 6 * SizeOf.PTR + 3 * SizeOf.INT);
+      SizeOf.object(SizeOf.BOOLEAN + SizeOf.DOUBLE + 8 * SizeOf.PTR
+                    + 3 * SizeOf.INT);
 
   // The following values were based on cursory examination of the EJML source.
   // They may not be exactly right (and may become less right after future
@@ -76,17 +78,73 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
            + linearSolverHeapSize(numX);
   }
 
+  // The version of the layout written by encode(), which is:
+  //   int     ENCODING_VERSION
+  //   int     numX
+  //   int     numY
+  //   int     numInputs
+  //   double  sumWeights
+  //   double  xSums[numX * (numX + 1) / 2]
+  //   double  ySums[numX * numY]
+  //   double  y2Sums[numY]
+  // in the byte order of the buffer.
+  private static final int ENCODING_VERSION = 1;
+  private static final int ENCODING_HEADER_SIZE = 4 * 4 + 8;
+
+  /**
+   * Returns the number of bytes written by encode() for a solver with the
+   * given dimensions.
+   */
+  public static int encodedSize(int numX, int numY) {
+    return ENCODING_HEADER_SIZE
+           + 8 * (numX * (numX + 1) / 2 + numX * numY + numY);
+  }
+
+  /**
+   * How the inputs are accumulated.
+   */
+  public enum Mode {
+    /**
+     * The sums of the normal equations transpose(X) * X * R = transpose(X) *
+     * Y are accumulated, and solved with a Cholesky decomposition.  This is
+     * the fastest mode, and the only one in which inputs can be removed and
+     * states can be encoded and merged by addition.
+     */
+    NORMAL_EQUATIONS,
+
+    /**
+     * The upper triangular factor of the QR decomposition of X is updated
+     * with Givens rotations as the inputs arrive.  This never forms
+     * transpose(X) * X, whose condition number is the square of the one of
+     * X, so it stays accurate when the x values are large and not centered
+     * (e.g. years used as is), at a similar cost for small numX.
+     */
+    GIVENS_QR
+  }
+
+  // the smallest diagonal element of the factor of the QR mode, relative to
+  // the largest one, for which the factor is not considered singular
+  private static final double SINGULAR_DIAGONAL = 1e-12;
+
   public final int numX;
   public final int numY;
+  public final Mode mode;
 
   private int numInputs;
-  // the upper-right elements of xMat (skipping (0, 0), which is numInputs)
+  // the sum of the weights of the inputs (numInputs if none was weighted)
+  private double sumWeights;
+  // the upper-right elements of xMat (skipping (0, 0), which is numInputs);
+  // in the QR mode, the upper triangle of the factor R, element (i, k) being
+  // at k * (k + 1) / 2 + i
   private final double[] xSums;
-  // the elements of yMat
+  // the elements of yMat; in the QR mode, transpose(Q) * Y
   private final double[] ySums;
-  // the sums of y_i^2
+  // the sums of y_i^2; in the QR mode, the residual sums of squares
   private final double[] y2Sums;
 
+  // the input being rotated into the factor, in the QR mode
+  private transient double[] rotated;
+
   // true if solver has been successfully initialized from xMat
   private transient boolean solved;
 
@@ -106,11 +164,28 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
    * to another (assuming that they have the same values for numX and numY),
    * which is equivalent to adding each of the inputs of the second solver
    * to the first.
+   *
+   * <p>Inputs can be removed too, with removeInput() and subtractInputsOf(),
+   * so a window of observations can slide over a series by adding the
+   * observation that enters it and removing the one that leaves it, instead
+   * of adding all the observations of each window again.
+   *
+   * <p>Observations can also be given a weight, to make a weighted least
+   * squares regression (e.g. down-weighting hazy observations instead of
+   * dropping them).
    */
   public LinearLeastSquares(int numX, int numY) {
+    this(numX, numY, Mode.NORMAL_EQUATIONS);
+  }
+
+  /**
+   * Creates a solver that accumulates its inputs in the given mode.
+   */
+  public LinearLeastSquares(int numX, int numY, Mode mode) {
     Preconditions.checkArgument(numX >= 1 && numY >= 1);
     this.numX = numX;
     this.numY = numY;
+    this.mode = Preconditions.checkNotNull(mode);
     this.xSums = new double[numX * (numX + 1) / 2];
     this.ySums = new double[numY * numX];
     this.y2Sums = new double[numY];
@@ -122,7 +197,8 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
            + SizeOf.array(xSums) + SizeOf.array(ySums) + SizeOf.array(y2Sums)
            + (xMat == null ? 0 : SizeOf.denseMatrix64F(numX, numX))
            + (yMat == null ? 0 : DENSE_MATRIX_OBJ_SIZE)
-           + (solver == null ? 0 : linearSolverHeapSize(numX));
+           + (solver == null ? 0 : linearSolverHeapSize(numX))
+           + (rotated == null ? 0 : SizeOf.array(rotated));
   }
 
   // If the input is written as two matrices, with each
@@ -160,17 +236,128 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
   //
   // We compute residual k with the formula
   //    Math.sqrt((sum(y_k^2) - dotProd(R[*, k], yMat[*, k])) / n)
+  //
+  // With weighted inputs every product is multiplied by the weight w of its
+  // input, which solves the weighted problem transpose(X) * W * X * R =
+  // transpose(X) * W * Y, and n becomes sum(w).
 
   /**
    * Add one observation, using numX values from x starting with xStart and
    * numY values from y starting at yStart.
    */
   public void addInput(double[] x, int xStart, double[] y, int yStart) {
+    addInput(x, xStart, y, yStart, 1.0);
+  }
+
+  /**
+   * Add one observation with the given weight, which must be non-negative.
+   * Adding an observation with a weight of 1 is the same as adding it without
+   * a weight.
+   */
+  public void addInput(double[] x, int xStart, double[] y, int yStart,
+      double weight) {
+    Preconditions.checkArgument(weight >= 0);
     ++numInputs;
+    sumWeights += weight;
+    if (mode == Mode.GIVENS_QR) {
+      double scale = Math.sqrt(weight);
+      double[] row = getRotated();
+      for (int i = 0; i < numX; ++i) {
+        row[i] = scale * x[xStart + i];
+      }
+      for (int j = 0; j < numY; ++j) {
+        row[numX + j] = scale * y[yStart + j];
+      }
+      rotate(row);
+      return;
+    }
+    update(x, xStart, y, yStart, weight);
+  }
+
+  private double[] getRotated() {
+    if (rotated == null) {
+      rotated = new double[numX + numY];
+    }
+    return rotated;
+  }
+
+  /**
+   * QR mode: rotate an input, whose numX x values are followed by its numY
+   * y values, into the factor R with one Givens rotation per x value.  What
+   * is left of the y values once the x values are zeroed out is the part of
+   * the input that no solution can fit, and is added to the residual sums of
+   * squares.
+   */
+  private void rotate(double[] row) {
+    for (int i = 0; i < numX; ++i) {
+      double b = row[i];
+      if (b == 0) {
+        continue;
+      }
+      int diagonal = i * (i + 1) / 2 + i;
+      double a = xSums[diagonal];
+      // hypot() is much slower, and the squares cannot overflow for the
+      // magnitudes of the inputs.
+      double r = Math.sqrt(a * a + b * b);
+      double c = a / r;
+      double s = b / r;
+      xSums[diagonal] = r;
+      row[i] = 0;
+      for (int k = i + 1; k < numX; ++k) {
+        int pos = k * (k + 1) / 2 + i;
+        double rik = xSums[pos];
+        double rowk = row[k];
+        xSums[pos] = c * rik + s * rowk;
+        row[k] = c * rowk - s * rik;
+      }
+      for (int j = 0; j < numY; ++j) {
+        int pos = i * numY + j;
+        double qty = ySums[pos];
+        double rowj = row[numX + j];
+        ySums[pos] = c * qty + s * rowj;
+        row[numX + j] = c * rowj - s * qty;
+      }
+    }
+    for (int j = 0; j < numY; ++j) {
+      double rest = row[numX + j];
+      y2Sums[j] += rest * rest;
+    }
+    solved = false;
+  }
+
+  /**
+   * Remove one observation that was previously added with addInput() (with
+   * the same values), as if it had never been added.
+   */
+  public void removeInput(double[] x, int xStart, double[] y, int yStart) {
+    removeInput(x, xStart, y, yStart, 1.0);
+  }
+
+  /**
+   * Remove one observation that was previously added with the given weight.
+   */
+  public void removeInput(double[] x, int xStart, double[] y, int yStart,
+      double weight) {
+    checkNormalEquations();
+    Preconditions.checkState(numInputs > 0);
+    if (--numInputs == 0) {
+      // drop the roundoff left by the additions and removals
+      reset();
+      return;
+    }
+    sumWeights -= weight;
+    update(x, xStart, y, yStart, -weight);
+  }
+
+  /**
+   * Add weight times the products of one observation to the sums.
+   */
+  private void update(double[] x, int xStart, double[] y, int yStart,
+      double weight) {
     // update xSums
     int pos = 0;
     for (int i = 0; i < numX; ++i) {
-      double xi = x[xStart + i];
+      double xi = weight * x[xStart + i];
       for (int i2 = 0; i2 <= i; ++i2) {
         xSums[pos++] += xi * x[xStart + i2];
       }
@@ -179,12 +366,12 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
     // update y2Sums
     for (int j = 0; j < numY; ++j) {
       double yj = y[yStart + j];
-      y2Sums[j] += yj * yj;
+      y2Sums[j] += weight * yj * yj;
     }
     // update ySums
     pos = 0;
     for (int i = 0; i < numX; ++i) {
-      double xi = x[xStart + i];
+      double xi = weight * x[xStart + i];
       for (int j = 0; j < numY; ++j) {
         double yj = y[yStart + j];
         ySums[pos++] += xi * yj;
@@ -205,6 +392,9 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
       // not enough inputs, no point in trying
       return false;
     }
+    if (mode == Mode.GIVENS_QR) {
+      return getQrSolution(results);
+    }
     if (xMat == null) {
       xMat = new DenseMatrix64F(numX, numX);
       // yMat can just point at the ySums array without copying
@@ -233,38 +423,94 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
     return solved;
   }
 
+  /**
+   * QR mode: solve R * results = transpose(Q) * Y by back substitution.
+   */
+  private boolean getQrSolution(DenseMatrix64F results) {
+    double maxDiagonal = 0;
+    for (int i = 0; i < numX; ++i) {
+      maxDiagonal = Math.max(maxDiagonal, Math.abs(xSums[i * (i + 1) / 2 + i]));
+    }
+    for (int i = 0; i < numX; ++i) {
+      if (Math.abs(xSums[i * (i + 1) / 2 + i])
+          <= SINGULAR_DIAGONAL * maxDiagonal) {
+        return false;
+      }
+    }
+    results.reshape(numX, numY, false);
+    for (int j = 0; j < numY; ++j) {
+      for (int i = numX - 1; i >= 0; --i) {
+        double sum = ySums[i * numY + j];
+        for (int k = i + 1; k < numX; ++k) {
+          sum -= xSums[k * (k + 1) / 2 + i] * results.unsafe_get(k, j);
+        }
+        results.unsafe_set(i, j, sum / xSums[i * (i + 1) / 2 + i]);
+      }
+    }
+    solved = true;
+    return solved;
+  }
+
   /**
    * Compute the square root of the mean squared residual for each dependent
-   * variable.  May only be called after a successful call to getSolution(),
-   * and must be given the (unmodified) results of that call and an array of
-   * the correct size in which to store the residuals.
+   * variable (the weighted mean if the inputs were weighted).  May only be
+   * called after a successful call to getSolution(), and must be given the
+   * (unmodified) results of that call and an array of the correct size in
+   * which to store the residuals.
    */
   public void getRmsResiduals(DenseMatrix64F results, double[] residuals) {
     Preconditions.checkState(solved);
     Preconditions.checkArgument(residuals.length == numY
         && results.getNumRows() == numX
         && results.getNumCols() == numY);
+    if (mode == Mode.GIVENS_QR) {
+      for (int i = 0; i < numY; ++i) {
+        residuals[i] = Math.sqrt(y2Sums[i] / sumWeights);
+      }
+      return;
+    }
     for (int i = 0; i < numY; ++i) {
       double sumSq = y2Sums[i];
       for (int j = 0; j < numX; ++j) {
         sumSq -= results.unsafe_get(j, i) * yMat.unsafe_get(j, i);
       }
       // due to roundoff, sumSq could end up slightly negative
-      residuals[i] = (sumSq <= 0) ? 0 : Math.sqrt(sumSq / numInputs);
+      residuals[i] = (sumSq <= 0) ? 0 : Math.sqrt(sumSq / sumWeights);
     }
   }
 
   /**
-   * Reset the solver to its no-inputs state.
+   * Reset the solver to its no-inputs state.  The matrices and the solver
+   * used by getSolution() are kept, so a solver can be reset and reused
+   * (e.g. for each pixel of a tile) without allocating them again.
    */
   public void reset() {
     numInputs = 0;
+    sumWeights = 0;
     Arrays.fill(xSums, 0);
     Arrays.fill(ySums, 0);
     Arrays.fill(y2Sums, 0);
     solved = false;
   }
 
+  /**
+   * Solvers serialized before the weights and the modes were added have
+   * neither sumWeights nor mode: they accumulated the normal equations, and
+   * each of their inputs had a weight of 1.
+   */
+  private Object readResolve() {
+    if (mode != null) {
+      return this;
+    }
+    LinearLeastSquares result = new LinearLeastSquares(numX, numY);
+    result.numInputs = numInputs;
+    result.sumWeights = numInputs;
+    System.arraycopy(xSums, 0, result.xSums, 0, xSums.length);
+    System.arraycopy(ySums, 0, result.ySums, 0, ySums.length);
+    System.arraycopy(y2Sums, 0, result.y2Sums, 0, y2Sums.length);
+    return result;
+  }
+
   /**
    * Add each element of src to the corresponding element of dest.
    */
@@ -274,16 +520,199 @@ public class LinearLeastSquares implements Serializable, SizeOf.Measurable {
     }
   }
 
+  /**
+   * Subtract each element of src from the corresponding element of dest.
+   */
+  private static void subtract(double[] dest, double[] src) {
+    for (int i = 0; i < src.length; ++i) {
+      dest[i] -= src[i];
+    }
+  }
+
   /**
    * Add all the inputs of another solver to this solver.  Does not change
    * the state of the other solver.
    */
   public void addInputsOf(LinearLeastSquares other) {
-    Preconditions.checkArgument(other.numX == numX && other.numY == numY);
+    Preconditions.checkArgument(other.numX == numX && other.numY == numY
+        && other.mode == mode);
     numInputs += other.numInputs;
+    sumWeights += other.sumWeights;
+    if (mode == Mode.GIVENS_QR) {
+      // the rows of the other factor have the same products as the inputs
+      // of the other solver, so they are rotated in as inputs.  Rotating
+      // overwrites this factor, so a solver merged into itself is copied
+      // first.
+      double[] otherXSums = other == this ? xSums.clone() : other.xSums;
+      double[] otherYSums = other == this ? ySums.clone() : other.ySums;
+      double[] otherY2Sums = other == this ? y2Sums.clone() : other.y2Sums;
+      double[] row = getRotated();
+      for (int i = 0; i < numX; ++i) {
+        for (int k = 0; k < numX; ++k) {
+          row[k] = k < i ? 0 : otherXSums[k * (k + 1) / 2 + i];
+        }
+        for (int j = 0; j < numY; ++j) {
+          row[numX + j] = otherYSums[i * numY + j];
+        }
+        rotate(row);
+      }
+      add(y2Sums, otherY2Sums);
+      return;
+    }
     add(xSums, other.xSums);
     add(ySums, other.ySums);
     add(y2Sums, other.y2Sums);
     solved = false;
   }
+
+  /**
+   * Remove all the inputs of another solver from this solver, which must
+   * have been added to it before (directly or with addInputsOf()).  Does not
+   * change the state of the other solver.
+   */
+  public void subtractInputsOf(LinearLeastSquares other) {
+    checkNormalEquations();
+    Preconditions.checkArgument(other.numX == numX && other.numY == numY
+        && other.mode == mode && other.numInputs <= numInputs);
+    numInputs -= other.numInputs;
+    if (numInputs == 0) {
+      // drop the roundoff left by the additions and removals
+      reset();
+      return;
+    }
+    sumWeights -= other.sumWeights;
+    subtract(xSums, other.xSums);
+    subtract(ySums, other.ySums);
+    subtract(y2Sums, other.y2Sums);
+    solved = false;
+  }
+
+  /**
+   * Write the accumulated state of this solver (not its solution) into the
+   * buffer at its position, which is advanced by encodedSize(numX, numY).
+   * This is much more compact and faster than Java serialization, so the
+   * partial states of workers can be exchanged through files or pipes.
+   */
+  public void encode(ByteBuffer buffer) {
+    checkNormalEquations();
+    buffer.putInt(ENCODING_VERSION);
+    buffer.putInt(numX);
+    buffer.putInt(numY);
+    buffer.putInt(numInputs);
+    buffer.putDouble(sumWeights);
+    for (double value : xSums) {
+      buffer.putDouble(value);
+    }
+    for (double value : ySums) {
+      buffer.putDouble(value);
+    }
+    for (double value : y2Sums) {
+      buffer.putDouble(value);
+    }
+  }
+
+  /**
+   * Returns the accumulated state of this solver, encoded by encode().
+   */
+  public byte[] encode() {
+    byte[] bytes = new byte[encodedSize(numX, numY)];
+    encode(ByteBuffer.wrap(bytes));
+    return bytes;
+  }
+
+  /**
+   * Creates a solver from a state written by encode(), read at the position
+   * of the buffer, which is advanced past it.
+   */
+  public static LinearLeastSquares decode(ByteBuffer buffer) {
+    int position = buffer.position();
+    checkEncodedHeader(buffer, position);
+    LinearLeastSquares result = new LinearLeastSquares(
+        buffer.getInt(position + 4), buffer.getInt(position + 8));
+    result.addInputsOf(buffer);
+    return result;
+  }
+
+  /**
+   * Add all the inputs of an encoded state, read at the position of the
+   * buffer (which is advanced past it), to this solver.  This is the same as
+   * addInputsOf(decode(buffer)) without creating a solver.
+   */
+  public void addInputsOf(ByteBuffer buffer) {
+    checkNormalEquations();
+    checkEncodedHeader(buffer, buffer.position());
+    checkEncodedDimensions(buffer, buffer.position(), numX, numY);
+    buffer.position(buffer.position() + 12);
+    numInputs += buffer.getInt();
+    sumWeights += buffer.getDouble();
+    for (int i = 0; i < xSums.length; ++i) {
+      xSums[i] += buffer.getDouble();
+    }
+    for (int i = 0; i < ySums.length; ++i) {
+      ySums[i] += buffer.getDouble();
+    }
+    for (int i = 0; i < y2Sums.length; ++i) {
+      y2Sums[i] += buffer.getDouble();
+    }
+    solved = false;
+  }
+
+  /**
+   * Merge two encoded states without decoding them: the state at the
+   * position of src is added in place to the state at the position of dest,
+   * as addInputsOf() would do.  The positions of the buffers are not
+   * changed, so states can be folded into one accumulator buffer, e.g. a
+   * memory mapped file.
+   */
+  public static void mergeEncoded(ByteBuffer dest, ByteBuffer src) {
+    int destPosition = dest.position();
+    int srcPosition = src.position();
+    checkEncodedHeader(dest, destPosition);
+    checkEncodedHeader(src, srcPosition);
+    int numX = dest.getInt(destPosition + 4);
+    int numY = dest.getInt(destPosition + 8);
+    checkEncodedDimensions(dest, destPosition, numX, numY);
+    checkEncodedDimensions(src, srcPosition, numX, numY);
+
+    dest.putInt(destPosition + 12,
+        dest.getInt(destPosition + 12) + src.getInt(srcPosition + 12));
+    int end = encodedSize(numX, numY);
+    for (int offset = 16; offset < end; offset += 8) {
+      dest.putDouble(destPosition + offset,
+          dest.getDouble(destPosition + offset)
+          + src.getDouble(srcPosition + offset));
+    }
+  }
+
+  /**
+   * Check that the buffer holds the header of an encoded state at the given
+   * position.
+   */
+  private static void checkEncodedHeader(ByteBuffer buffer, int position) {
+    Preconditions.checkArgument(
+        buffer.limit() - position >= ENCODING_HEADER_SIZE
+        && buffer.getInt(position) == ENCODING_VERSION,
+        "Not an encoded LinearLeastSquares state");
+  }
+
+  /**
+   * Check that the encoded state at the given position has the given
+   * dimensions and fits in the buffer.
+   */
+  private static void checkEncodedDimensions(ByteBuffer buffer, int position,
+      int numX, int numY) {
+    Preconditions.checkArgument(buffer.getInt(position + 4) == numX
+        && buffer.getInt(position + 8) == numY
+        && buffer.limit() - position >= encodedSize(numX, numY),
+        "Encoded state does not have the expected dimensions");
+  }
+
+  /**
+   * Check that the inputs are accumulated as sums, which is needed to
+   * remove them or to encode and merge states.
+   */
+  private void checkNormalEquations() {
+    Preconditions.checkState(mode == Mode.NORMAL_EQUATIONS,
+        "Not supported by a %s solver", mode);
+  }
 }
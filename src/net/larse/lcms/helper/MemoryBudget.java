@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2015 Zhiqiang Yang.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.larse.lcms.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.earthengine.api.task.SizeOf;
+
+/**
+ * Bounds the heap used by the workers that run an algorithm over the tiles
+ * of an image, so that the tile size and the number of workers no longer
+ * have to be picked by hand for each stack length.
+ *
+ * <p>The memory of a worker is modeled as a fixed part, the workspace of its
+ * solver (e.g. LandTrendrSolver.heapSize(), Verdet.heapSize(), VCT.heapSize()
+ * or LinearLeastSquares.heapSize()), plus a part per pixel of its tile (the
+ * input stack and the outputs of the pixel, and any per-pixel accumulator).
+ * getTilePixels() and getNumWorkers() size the tiles and the workers from
+ * these estimates, and acquire() and release() account for the memory that
+ * is actually in use, blocking the workers that would exceed the budget
+ * until enough of it is released.
+ */
+public class MemoryBudget {
+  private final long budget;
+  private long reserved;
+
+  /**
+   * Creates a budget of the given number of bytes.
+   */
+  public MemoryBudget(long budget) {
+    Preconditions.checkArgument(budget > 0);
+    this.budget = budget;
+  }
+
+  /**
+   * Creates a budget of the given fraction of the maximum heap of the JVM,
+   * leaving the rest for everything else.
+   */
+  public static MemoryBudget ofMaxHeap(double fraction) {
+    Preconditions.checkArgument(fraction > 0 && fraction <= 1);
+    long maxMemory = Runtime.getRuntime().maxMemory();
+    return new MemoryBudget((long) (maxMemory * fraction));
+  }
+
+  /**
+   * Returns the memory used by a worker processing a tile of the given
+   * number of pixels.
+   */
+  public static long getWorkerSize(long bytesPerPixel, long bytesPerWorker,
+      int tilePixels) {
+    return bytesPerWorker + bytesPerPixel * tilePixels;
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Returns the part of the budget that is not acquired.
+   */
+  public synchronized long getAvailable() {
+    return budget - reserved;
+  }
+
+  /**
+   * Returns the largest number of pixels of a tile, at most maxTilePixels,
+   * for which numWorkers workers fit in the budget together. Throws an
+   * exception if they do not fit even with one pixel per tile.
+   */
+  public int getTilePixels(long bytesPerPixel, long bytesPerWorker,
+      int numWorkers, int maxTilePixels) {
+    Preconditions.checkArgument(bytesPerPixel > 0 && bytesPerWorker >= 0
+        && numWorkers >= 1 && maxTilePixels >= 1);
+    long perWorker = budget / numWorkers;
+    long pixels = (perWorker - bytesPerWorker) / bytesPerPixel;
+    Preconditions.checkArgument(pixels >= 1,
+        "%s workers need more than a budget of %s bytes", numWorkers, budget);
+    return (int) Math.min(pixels, maxTilePixels);
+  }
+
+  /**
+   * Returns the side of the largest square tile, at most maxTileSide pixels,
+   * for which numWorkers workers fit in the budget together.
+   */
+  public int getTileSide(long bytesPerPixel, long bytesPerWorker,
+      int numWorkers, int maxTileSide) {
+    int maxTilePixels = (int) Math.min(Integer.MAX_VALUE,
+        (long) maxTileSide * maxTileSide);
+    int pixels = getTilePixels(bytesPerPixel, bytesPerWorker, numWorkers,
+        maxTilePixels);
+    return Math.max(1, Math.min(maxTileSide, (int) Math.sqrt(pixels)));
+  }
+
+  /**
+   * Returns the largest number of workers, at most maxWorkers and at least
+   * 1, that fit in the budget together with tiles of the given number of
+   * pixels.
+   */
+  public int getNumWorkers(long bytesPerPixel, long bytesPerWorker,
+      int tilePixels, int maxWorkers) {
+    Preconditions.checkArgument(maxWorkers >= 1);
+    long workers =
+        budget / getWorkerSize(bytesPerPixel, bytesPerWorker, tilePixels);
+    return (int) Math.max(1, Math.min(workers, maxWorkers));
+  }
+
+  /**
+   * Acquires the given number of bytes of the budget, waiting until enough
+   * of it has been released if needed.
+   */
+  public synchronized void acquire(long bytes) throws InterruptedException {
+    Preconditions.checkArgument(bytes >= 0 && bytes <= budget,
+        "Cannot acquire %s bytes of a budget of %s bytes", bytes, budget);
+    while (reserved + bytes > budget) {
+      wait();
+    }
+    reserved += bytes;
+  }
+
+  /**
+   * Acquires the estimated heap size of the given object, waiting as above,
+   * and returns it so it can be released.
+   */
+  public long acquire(SizeOf.Measurable object) throws InterruptedException {
+    long bytes = object.heapSize();
+    acquire(bytes);
+    return bytes;
+  }
+
+  /**
+   * Acquires the given number of bytes of the budget if they are available
+   * now, and returns whether they were acquired.
+   */
+  public synchronized boolean tryAcquire(long bytes) {
+    Preconditions.checkArgument(bytes >= 0);
+    if (reserved + bytes > budget) {
+      return false;
+    }
+    reserved += bytes;
+    return true;
+  }
+
+  /**
+   * Releases bytes that were acquired before, waking the workers waiting for
+   * them.
+   */
+  public synchronized void release(long bytes) {
+    Preconditions.checkArgument(bytes >= 0 && bytes <= reserved);
+    reserved -= bytes;
+    notifyAll();
+  }
+}
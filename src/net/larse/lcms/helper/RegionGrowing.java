@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2015 Zhiqiang Yang.
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package net.larse.lcms.helper;
+
+import com.google.common.base.Preconditions;
+import com.google.earthengine.api.task.SizeOf;
+
+import java.util.Arrays;
+
+/**
+ * Groups the pixels of a tile into spatially connected segments of similar
+ * time series, so that an algorithm can run once per segment on its mean
+ * series instead of once per pixel (e.g. Verdet.getResults()).
+ *
+ * <p>Segments are grown from the first pixel, in raster order, that is not
+ * in a segment yet: a 4-connected neighbour joins the segment if the root
+ * mean square difference between its series and the mean series of the
+ * segment is at most the threshold, until the segment has maxPixels pixels.
+ * A threshold of 0 only merges pixels with identical series. A pixel whose
+ * series has a NaN or infinite observation (e.g. a masked pixel) is a
+ * segment of its own: it neither grows a segment nor joins one.
+ *
+ * <p>The tile is band sequential: observation i of pixel p = y * width + x
+ * is at tile[i * width * height + p]. The arrays grow as needed, so an
+ * instance is meant to be reused for all the tiles of a worker.
+ */
+public class RegionGrowing {
+  private final double threshold;
+  private final int maxPixels;
+
+  private int numSegments;
+  private int numObs;
+  // the segment of each pixel, and the mean series of each segment (the
+  // observations of segment s start at means[s * numObs]).
+  private int[] labels = new int[0];
+  private double[] means = new double[0];
+  // the pixels of the segment being grown, in the order they joined it.
+  private int[] queue = new int[0];
+
+  public RegionGrowing(double threshold, int maxPixels) {
+    Preconditions.checkArgument(threshold >= 0 && maxPixels >= 1);
+    this.threshold = threshold;
+    this.maxPixels = maxPixels;
+  }
+
+  /**
+   * Returns an (approximate) upper bound on the heap used to segment a tile
+   * of the given number of pixels and observations.
+   */
+  public static long heapSize(int numPixels, int nObs) {
+    return SizeOf.object(3 * SizeOf.INT + SizeOf.DOUBLE + 3 * SizeOf.PTR)
+        + 2 * SizeOf.array(SizeOf.INT * numPixels)
+        + SizeOf.array(SizeOf.DOUBLE * numPixels * nObs);
+  }
+
+  /**
+   * Segments a tile of nObs observations and returns the number of
+   * segments.
+   */
+  public int segment(double[] tile, int width, int height, int nObs) {
+    int numPixels = width * height;
+    Preconditions.checkArgument(width >= 1 && height >= 1 && nObs >= 1
+        && tile.length >= numPixels * nObs);
+    if (labels.length < numPixels) {
+      labels = new int[numPixels];
+      queue = new int[numPixels];
+    }
+    if (means.length < numPixels * nObs) {
+      means = new double[numPixels * nObs];
+    }
+    Arrays.fill(labels, 0, numPixels, -1);
+    numObs = nObs;
+    numSegments = 0;
+
+    double maxSquaredDistance = threshold * threshold * nObs;
+    for (int seed = 0; seed < numPixels; seed++) {
+      if (labels[seed] >= 0) {
+        continue;
+      }
+      int segment = numSegments++;
+      int offset = segment * nObs;
+      // the sums of the series of the segment are kept in its means, which
+      // are divided by the count when they are needed.
+      for (int i = 0; i < nObs; i++) {
+        means[offset + i] = tile[i * numPixels + seed];
+      }
+      labels[seed] = segment;
+      queue[0] = seed;
+      int count = 1;
+      int limit = isFinite(tile, numPixels, seed) ? maxPixels : 1;
+
+      for (int head = 0; head < count && count < limit; head++) {
+        int p = queue[head];
+        int x = p % width;
+        int y = p / width;
+        for (int n = 0; n < 4 && count < limit; n++) {
+          int nx = x + (n == 0 ? -1 : n == 1 ? 1 : 0);
+          int ny = y + (n == 2 ? -1 : n == 3 ? 1 : 0);
+          if (nx < 0 || nx >= width || ny < 0 || ny >= height) {
+            continue;
+          }
+          int q = ny * width + nx;
+          // written so that a NaN distance does not join the segment.
+          if (labels[q] >= 0 || !isFinite(tile, numPixels, q)
+              || !(squaredDistance(tile, numPixels, q, offset, count)
+                  <= maxSquaredDistance)) {
+            continue;
+          }
+          labels[q] = segment;
+          queue[count++] = q;
+          for (int i = 0; i < nObs; i++) {
+            means[offset + i] += tile[i * numPixels + q];
+          }
+        }
+      }
+
+      for (int i = 0; i < nObs; i++) {
+        means[offset + i] /= count;
+      }
+    }
+    return numSegments;
+  }
+
+  /**
+   * Returns true if no observation of pixel p is NaN or infinite.
+   */
+  private boolean isFinite(double[] tile, int numPixels, int p) {
+    for (int i = 0; i < numObs; i++) {
+      double value = tile[i * numPixels + p];
+      if (Double.isNaN(value) || Double.isInfinite(value)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the squared distance between the series of pixel p and the mean
+   * of the count series summed at the given offset of means.
+   */
+  private double squaredDistance(double[] tile, int numPixels, int p,
+      int offset, int count) {
+    double sum = 0;
+    for (int i = 0; i < numObs; i++) {
+      double d = tile[i * numPixels + p] - means[offset + i] / count;
+      sum += d * d;
+    }
+    return sum;
+  }
+
+  public int getNumSegments() {
+    return numSegments;
+  }
+
+  /**
+   * Returns the segment of the given pixel of the last tile.
+   */
+  public int getLabel(int pixel) {
+    return labels[pixel];
+  }
+
+  /**
+   * Copies the mean series of the given segment of the last tile into dest.
+   */
+  public void getMean(int segment, double[] dest) {
+    Preconditions.checkElementIndex(segment, numSegments);
+    System.arraycopy(means, segment * numObs, dest, 0, numObs);
+  }
+}
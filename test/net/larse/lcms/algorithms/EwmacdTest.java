@@ -0,0 +1,124 @@
+package com.google.earthengine.examples.landsat;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import org.apache.commons.math.stat.descriptive.moment.StandardDeviation;
+import org.apache.commons.math.stat.regression.OLSMultipleLinearRegression;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EwmacdTest {
+  /**
+   * Returns the sines and then the cosines of the harmonics of day x, as the
+   * regressors of OLSMultipleLinearRegression (which adds the constant).
+   */
+  static double[] regressors(Ewmacd.Args args, double x) {
+    double[] row = new double[args.sineHarmonicCount + args.cosineHarmonicCount];
+    for (int h = 1; h <= args.sineHarmonicCount; h++) {
+      row[h - 1] = Math.sin(h * (x * 2 * Math.PI / 365));
+    }
+    for (int h = 1; h <= args.cosineHarmonicCount; h++) {
+      row[args.sineHarmonicCount + h - 1] = Math.cos(h * (x * 2 * Math.PI / 365));
+    }
+    return row;
+  }
+
+  /**
+   * The training fit as it was done with OLSMultipleLinearRegression: a fit
+   * of all the observations, then a refit of the ones whose residual is at
+   * most xBarLimit1 standard deviations.
+   */
+  static double[] olsTrainingHarmonic(Ewmacd.Args args, double[] x, double[] y) {
+    double[][] matrix = new double[x.length][];
+    for (int i = 0; i < x.length; i++) {
+      matrix[i] = regressors(args, x[i]);
+    }
+    OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
+    ols.newSampleData(y, matrix);
+    double[] residuals = ols.estimateResiduals();
+    double limit = new StandardDeviation().evaluate(residuals) * args.xBarLimit1;
+
+    DoubleArrayList samples = new DoubleArrayList();
+    int validCount = 0;
+    for (int i = 0; i < residuals.length; i++) {
+      if (Math.abs(residuals[i]) <= limit) {
+        samples.add(y[i]);
+        for (double value : matrix[i]) {
+          samples.add(value);
+        }
+        validCount++;
+      }
+    }
+    OLSMultipleLinearRegression refit = new OLSMultipleLinearRegression();
+    refit.newSampleData(samples.toDoubleArray(), validCount, matrix[0].length);
+    return refit.estimateRegressionParameters();
+  }
+
+  @Test
+  public void testTrainingHarmonicMatchesOls() {
+    Random random = new Random(5);
+    for (int harmonics = 1; harmonics <= 3; harmonics++) {
+      Ewmacd.Args args = new Ewmacd.Args();
+      args.sineHarmonicCount = harmonics;
+      args.cosineHarmonicCount = harmonics == 3 ? 2 : harmonics;
+      Ewmacd ewmacd = new Ewmacd(args);
+      for (int run = 0; run < 20; run++) {
+        int n = 15 + random.nextInt(30);
+        double[] x = new double[n];
+        double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+          // integer days use the tables, the others Math.sin() and Math.cos().
+          x[i] = i % 2 == 0 ? random.nextInt(366) : random.nextDouble() * 365;
+          y[i] = 3000 + 1500 * Math.sin(x[i] * 2 * Math.PI / 365 + 0.5)
+              + 200 * random.nextGaussian()
+              + (random.nextInt(10) == 0 ? -2000 : 0);
+        }
+        assertTrue(ewmacd.getTrainingHarmonic(x, y, 0, n));
+        double[] expected = olsTrainingHarmonic(args, x, y);
+        double[] betas = ewmacd.getBetas();
+        assertEquals(expected.length, betas.length);
+        for (int j = 0; j < betas.length; j++) {
+          assertEquals(expected[j], betas[j], 1e-9 * Math.max(1, Math.abs(expected[j])));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testTrainingHarmonicRankDeficient() {
+    Ewmacd ewmacd = new Ewmacd();
+    // fewer observations than terms.
+    assertFalse(ewmacd.getTrainingHarmonic(
+        new double[] {10, 100, 200}, new double[] {1, 2, 3}, 0, 3));
+    // all on the same day.
+    double[] x = new double[10];
+    double[] y = new double[10];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = 42;
+      y[i] = i;
+    }
+    assertFalse(ewmacd.getTrainingHarmonic(x, y, 0, x.length));
+  }
+
+  @Test
+  public void testHarmonicTablesMatchTheDirectFormula() {
+    // the terms as the per-pixel code computed them.
+    for (int day = -1; day <= 400; day++) {
+      for (int h = 1; h <= 10; h++) {
+        double rx = day * 2 * Math.PI / 365;
+        assertEquals(Math.sin(h * rx), Ewmacd.harmonicSin(day, h), 0);
+        assertEquals(Math.cos(h * rx), Ewmacd.harmonicCos(day, h), 0);
+      }
+    }
+    // fractional days are not in the tables.
+    for (double x : new double[] {0.5, 17.25, 365.75}) {
+      for (int h = 1; h <= 3; h++) {
+        double rx = x * 2 * Math.PI / 365;
+        assertEquals(Math.sin(h * rx), Ewmacd.harmonicSin(x, h), 0);
+        assertEquals(Math.cos(h * rx), Ewmacd.harmonicCos(x, h), 0);
+      }
+    }
+  }
+}
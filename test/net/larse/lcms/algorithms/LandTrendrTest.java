@@ -0,0 +1,541 @@
+package net.larse.lcms.algorithms;
+
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import net.larse.lcms.helper.EEArray;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LandTrendrTest {
+  LandTrendr.LandTrendrSolver solver;
+
+  @Before
+  public void setUp() {
+    solver = new LandTrendr.LandTrendrSolver();
+  }
+
+  /**
+   * Returns the years 1985 to 1985 + n - 1.
+   */
+  static double[] years(int n) {
+    double[] years = new double[n];
+    for (int i = 0; i < n; i++) {
+      years[i] = 1985 + i;
+    }
+    return years;
+  }
+
+  /**
+   * Returns a noisy series with a disturbance at a random year, followed by
+   * a recovery.
+   */
+  static double[] disturbedSeries(Random random, int n) {
+    int onset = 5 + random.nextInt(n - 8);
+    double[] y = new double[n];
+    for (int i = 0; i < n; i++) {
+      y[i] = 600 + random.nextGaussian() * 15
+          - (i >= onset ? 250 - (i - onset) * 12 : 0);
+    }
+    return y;
+  }
+
+  /**
+   * Returns sorted distinct random vertices of n observations, including the
+   * first and the last ones.
+   */
+  static List<Integer> randomVertices(Random random, int n, int numVertices) {
+    List<Integer> vertices = new ArrayList<>();
+    vertices.add(0);
+    while (vertices.size() < numVertices - 1) {
+      int vertex = 1 + random.nextInt(n - 2);
+      if (!vertices.contains(vertex)) {
+        vertices.add(vertex);
+      }
+    }
+    vertices.add(n - 1);
+    vertices.sort(null);
+    return vertices;
+  }
+
+  /**
+   * The linear scan cullByAngle() used before the heap: removes the interior
+   * vertex with the smallest angle difference until maxSegments + 1 are left.
+   */
+  List<Integer> cullByAngleLinearScan(double[] x, double[] y, int maxSegments,
+      List<Integer> potentialVertices) {
+    int maxVertices = maxSegments + 1;
+    if (potentialVertices.size() <= maxVertices) {
+      return potentialVertices;
+    }
+    double minY = y[0];
+    double maxY = y[0];
+    double minX = x[0];
+    double maxX = x[0];
+    for (int i = 1; i < x.length; i++) {
+      minY = Math.min(minY, y[i]);
+      maxY = Math.max(maxY, y[i]);
+      minX = Math.min(minX, x[i]);
+      maxX = Math.max(maxX, x[i]);
+    }
+    double[] tmpY = new double[y.length];
+    for (int i = 0; i < x.length; i++) {
+      tmpY[i] = (maxX - minX) * (y[i] - minY) / (maxY - minY);
+    }
+    double range = maxX - minX;
+
+    List<Double> angles = new ArrayList<>();
+    for (int i = 1; i < potentialVertices.size() - 1; i++) {
+      angles.add(solver.angleDifference(x, tmpY, i, potentialVertices, range,
+          2.0));
+    }
+    while (true) {
+      int minIndex = 0;
+      for (int i = 0; i < angles.size(); i++) {
+        if (angles.get(minIndex) > angles.get(i)) {
+          minIndex = i;
+        }
+      }
+      potentialVertices.remove(minIndex + 1);
+      angles.remove(minIndex);
+      if (potentialVertices.size() <= maxVertices) {
+        break;
+      }
+      if (0 == minIndex) {
+        angles.set(0, solver.angleDifference(x, tmpY, 1, potentialVertices,
+            maxY - minY, 2.0));
+      } else if (angles.size() == minIndex) {
+        angles.set(minIndex - 1, solver.angleDifference(x, tmpY, minIndex,
+            potentialVertices, range, 2.0));
+      } else {
+        angles.set(minIndex, solver.angleDifference(x, tmpY, minIndex + 1,
+            potentialVertices, range, 2.0));
+        angles.set(minIndex - 1, solver.angleDifference(x, tmpY, minIndex,
+            potentialVertices, range, 2.0));
+      }
+    }
+    return potentialVertices;
+  }
+
+  @Test
+  public void testCullByAngleMatchesLinearScan() {
+    Random random = new Random(1);
+    for (int t = 0; t < 500; t++) {
+      int n = 10 + random.nextInt(30);
+      double[] x = years(n);
+      double[] y = random.nextBoolean()
+          ? disturbedSeries(random, n)
+          // plateaus, so several vertices have the same angle.
+          : Arrays.stream(disturbedSeries(random, n)).map(Math::rint).toArray();
+      int maxSegments = 1 + random.nextInt(6);
+      int numVertices = Math.min(n, maxSegments + 2 + random.nextInt(6));
+      List<Integer> vertices = randomVertices(random, n, numVertices);
+
+      List<Integer> expected =
+          cullByAngleLinearScan(x, y, maxSegments, new ArrayList<>(vertices));
+      List<Integer> actual =
+          solver.cullByAngle(x, y, maxSegments, new ArrayList<>(vertices));
+      assertEquals(expected, actual);
+    }
+  }
+
+  /**
+   * The desawtooth() used before the heap: corrects the observation with the
+   * largest correction proportion, scanning all of them after each
+   * correction.
+   */
+  static double[] desawtoothLinearScan(double[] values, double threshold) {
+    int maxIdx = -1;
+    for (int count = 0; count < values.length; count++) {
+      double[] correction = new double[values.length];
+      double[] propCorrection = new double[values.length];
+      double max = 0.0;
+      for (int i = 1; i < values.length - 1; i++) {
+        double md = Math.max(Math.abs(values[i] - values[i - 1]),
+            Math.abs(values[i] - values[i + 1]));
+        if (md > 0.0) {
+          propCorrection[i] = 1.0 - Math.abs(values[i - 1] - values[i + 1]) / md;
+          correction[i] = propCorrection[i]
+              * (((values[i - 1] + values[i + 1]) / 2) - values[i]);
+        }
+        if (max < propCorrection[i] || i == 1) {
+          max = propCorrection[i];
+          maxIdx = i;
+        }
+      }
+      if (max > threshold) {
+        values[maxIdx] = values[maxIdx] + correction[maxIdx];
+      } else {
+        break;
+      }
+    }
+    return values;
+  }
+
+  @Test
+  public void testDesawtoothMatchesLinearScan() {
+    Random random = new Random(2);
+    for (int t = 0; t < 500; t++) {
+      int n = 10 + random.nextInt(30);
+      double[] y = disturbedSeries(random, n);
+      int numSpikes = random.nextInt(5);
+      for (int i = 0; i < numSpikes; i++) {
+        y[random.nextInt(n)] += (random.nextBoolean() ? 1 : -1) * 300;
+      }
+      if (t % 10 == 0) {
+        // a flat stretch, whose proportions are all zero.
+        Arrays.fill(y, 2, 6, 600);
+      }
+      double threshold = random.nextBoolean() ? 0.9 : random.nextDouble();
+
+      assertArrayEquals(desawtoothLinearScan(y.clone(), threshold),
+          solver.desawtooth(y.clone(), threshold), 0.0);
+    }
+    // too short to have interior observations.
+    assertArrayEquals(new double[] {1, 5},
+        solver.desawtooth(new double[] {1, 5}, 0.9), 0.0);
+  }
+
+  @Test
+  public void testTimeAxisSums() {
+    double[] years = {1985, 1986, 1988, 1989, 1990, 1993, 1994, 1997};
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+    assertEquals(0.0, axis.minTime, 0.0);
+    assertEquals(12.0, axis.maxTime, 0.0);
+    assertEquals(12.0, axis.range(), 0.0);
+    assertTrue(axis.hasYears(years.clone()));
+    assertFalse(axis.hasYears(Arrays.copyOf(years, 7)));
+    for (int begin = 0; begin < years.length; begin++) {
+      for (int end = begin; end < years.length; end++) {
+        double sumX = 0;
+        double sumXX = 0;
+        double sumAnchoredXX = 0;
+        for (int i = begin; i <= end; i++) {
+          double t = years[i] - years[0];
+          double anchored = years[i] - years[begin];
+          sumX += t;
+          sumXX += t * t;
+          sumAnchoredXX += anchored * anchored;
+        }
+        assertEquals(sumX, axis.sumX(begin, end), 0.0);
+        assertEquals(sumXX, axis.sumXX(begin, end), 0.0);
+        assertEquals(sumAnchoredXX, axis.sumAnchoredXX(begin, end), 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testSharedTimeAxisMatchesPerPixelFit() {
+    Random random = new Random(4);
+    int n = 26;
+    double[] years = years(n);
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+    for (int t = 0; t < 100; t++) {
+      double[] y = disturbedSeries(random, n);
+      // the times built for each pixel, as before the time axis.
+      double[] times = new double[n];
+      for (int i = 0; i < n; i++) {
+        times[i] = years[i] - years[0];
+      }
+      List<Integer> expected =
+          solver.getResult(LandTrendr.TimeAxis.ofTimes(times), y);
+      assertEquals(expected, solver.getResult(
+          new DoubleArrayList(years), new DoubleArrayList(y)));
+      // the axis of the tile, which is not modified.
+      double[] values = y.clone();
+      assertEquals(expected, solver.getResult(axis, values));
+      assertArrayEquals(y, values, 0.0);
+      assertArrayEquals(years(n), axis.years, 0.0);
+    }
+  }
+
+  @Test
+  public void testResultArrayAndPackedCube() {
+    Random random = new Random(5);
+    int n = 24;
+    int numPixels = 7;
+    double[] years = years(n);
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+    int numBands = solver.getNumOutputBands(n);
+    double[] cube = new double[numBands * numPixels];
+    for (int p = 0; p < numPixels; p++) {
+      double[] y = disturbedSeries(random, n);
+      LandTrendr.LandTrendrSolver.Model model = solver.fitModel(axis, y);
+      List<Integer> vertices = model.vertices;
+
+      // the years, the raw values, the fitted values and the vertex flags.
+      EEArray array = solver.getResultArray(axis, y);
+      assertEquals(4 * n, array.length());
+      for (int i = 0; i < n; i++) {
+        assertEquals(years[i], array.getDouble(i), 0.0);
+        assertEquals(y[i], array.getDouble(n + i), 0.0);
+        assertEquals(model.yFitted[i], array.getDouble(2 * n + i), 0.0);
+        assertEquals(vertices.contains(i) ? 1.0 : 0.0,
+            array.getDouble(3 * n + i), 0.0);
+      }
+
+      solver.getResult(axis, y, cube, p, numPixels);
+      for (int i = 0; i < n; i++) {
+        assertEquals(model.yFitted[i], cube[i * numPixels + p], 0.0);
+        assertEquals(vertices.contains(i) ? 1.0 : 0.0,
+            cube[(n + i) * numPixels + p], 0.0);
+      }
+      int band = 2 * n;
+      for (; band < numBands - 3; band++) {
+        int segment = band - 2 * n;
+        assertEquals(segment < model.slopes.size()
+                ? model.slopes.get(segment) : Double.NaN,
+            cube[band * numPixels + p], 0.0);
+      }
+      assertEquals(model.pValue, cube[band++ * numPixels + p], 0.0);
+      assertEquals(model.fStat, cube[band++ * numPixels + p], 0.0);
+      assertEquals(model.rmse(), cube[band * numPixels + p], 0.0);
+    }
+  }
+
+  @Test
+  public void testFitToVerticesMatchesModel() {
+    Random random = new Random(6);
+    int n = 24;
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years(n));
+    int numCompared = 0;
+    for (int t = 0; t < 50; t++) {
+      double[] y = disturbedSeries(random, n);
+      LandTrendr.LandTrendrSolver.Model model = solver.fitModel(axis, y);
+      double[] primary = solver.desawtooth(y.clone(), 0.9);
+      double[] secondary = disturbedSeries(random, n);
+
+      double[][] fitted = new double[2][n];
+      solver.fitToVertices(axis, model.vertices,
+          new double[][] {primary, secondary}, fitted);
+      if (model instanceof LandTrendr.LandTrendrSolver.ModelNormal) {
+        // the primary band is fitted at its own vertices as the model was.
+        assertArrayEquals(model.yFitted, fitted[0], 1e-9);
+        numCompared++;
+      }
+
+      // the bands do not depend on each other.
+      double[][] alone = new double[1][n];
+      solver.fitToVertices(axis, model.vertices, new double[][] {secondary},
+          alone);
+      assertArrayEquals(alone[0], fitted[1], 0.0);
+    }
+    assertTrue(numCompared > 25);
+  }
+
+  @Test
+  public void testChangeMaps() {
+    int n = 26;
+    double[] years = years(n);
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+    Random random = new Random(7);
+    // a disturbance (an increase) in 1996, then a recovery over 10 years.
+    double[] changed = new double[n];
+    double[] stable = new double[n];
+    for (int i = 0; i < n; i++) {
+      changed[i] = (i <= 10 ? 100 : i <= 20 ? 400 - 30 * (i - 10) : 100)
+          + random.nextGaussian();
+      stable[i] = 100 + random.nextGaussian();
+    }
+    double scale = 10;
+    LandTrendr.ChangeMaps changeMaps = new LandTrendr.ChangeMaps(50, 1, scale);
+    int[] output = new int[LandTrendr.ChangeMaps.NUM_BANDS * 2];
+    solver.getChangeMaps(axis, changed, changeMaps, output, 0, 2);
+    solver.getChangeMaps(axis, stable, changeMaps, output, 1, 2);
+
+    // the segments of the model picked by each map.
+    LandTrendr.LandTrendrSolver.Model model = solver.fitModel(axis, changed);
+    List<Integer> vertices = model.vertices;
+    double[] changes = new double[vertices.size() - 1];
+    int[] segments = {-1, -1, -1};
+    for (int i = 0; i < changes.length; i++) {
+      double duration = years[vertices.get(i + 1)] - years[vertices.get(i)];
+      changes[i] = model.slopes.get(i) * duration;
+      if (Math.abs(changes[i]) < 50) {
+        continue;
+      }
+      int greatest = segments[LandTrendr.ChangeMaps.GREATEST_DISTURBANCE];
+      int longest = segments[LandTrendr.ChangeMaps.LONGEST_RECOVERY];
+      if (changes[i] > 0) {
+        if (greatest == -1 || changes[i] > changes[greatest]) {
+          segments[LandTrendr.ChangeMaps.GREATEST_DISTURBANCE] = i;
+        }
+        segments[LandTrendr.ChangeMaps.MOST_RECENT_DISTURBANCE] = i;
+      } else if (longest == -1 || duration > years[vertices.get(longest + 1)]
+          - years[vertices.get(longest)]) {
+        segments[LandTrendr.ChangeMaps.LONGEST_RECOVERY] = i;
+      }
+    }
+
+    for (int map = 0; map < 3; map++) {
+      int segment = segments[map];
+      assertTrue(segment != -1);
+      int begin = vertices.get(segment);
+      int end = vertices.get(segment + 1);
+      double duration = years[end] - years[begin];
+      assertEquals((int) years[begin + 1],
+          band(output, map, LandTrendr.ChangeMaps.YEAR, 0));
+      assertEquals(Math.round(Math.abs(changes[segment]) * scale),
+          band(output, map, LandTrendr.ChangeMaps.MAGNITUDE, 0));
+      assertEquals(Math.round(duration),
+          band(output, map, LandTrendr.ChangeMaps.DURATION, 0));
+      assertEquals(Math.round(model.intercepts.get(segment) * scale),
+          band(output, map, LandTrendr.ChangeMaps.PRE_VALUE, 0));
+      assertEquals(Math.round(Math.abs(changes[segment]) / duration * scale),
+          band(output, map, LandTrendr.ChangeMaps.RATE, 0));
+    }
+    // the disturbance is found at its year, from the stable level.
+    assertEquals(1996, band(output, LandTrendr.ChangeMaps.GREATEST_DISTURBANCE,
+        LandTrendr.ChangeMaps.YEAR, 0));
+    assertEquals(1000, band(output, LandTrendr.ChangeMaps.GREATEST_DISTURBANCE,
+        LandTrendr.ChangeMaps.PRE_VALUE, 0), 50);
+
+    // no change is larger than minMagnitude in the stable pixel.
+    for (int b = 0; b < LandTrendr.ChangeMaps.NUM_BANDS; b++) {
+      assertEquals(0, output[b * 2 + 1]);
+    }
+  }
+
+  /**
+   * Returns the given band of a map of a pixel of a tile of 2 pixels.
+   */
+  static int band(int[] output, int map, int attribute, int pixel) {
+    return output[LandTrendr.ChangeMaps.band(map, attribute) * 2 + pixel];
+  }
+
+  /**
+   * The identifyBestModel() used before the model buffers: a new ModelNormal
+   * per candidate, each one with the weakest vertex of the previous one
+   * removed.
+   */
+  LandTrendr.LandTrendrSolver.Model identifyBestModelWithModels(double[] x,
+      double[] y, double yMean, List<Integer> vertices,
+      double recoveryThreshold, double bestModelProportion) {
+    List<Integer> tmpVertices = new ArrayList<>(vertices);
+    int modelsCount = 0;
+    LandTrendr.LandTrendrSolver.ModelNormal[] models =
+        new LandTrendr.LandTrendrSolver.ModelNormal[tmpVertices.size() - 1];
+    for (int i = tmpVertices.size(); i >= 2; i--) {
+      models[modelsCount] = solver.new ModelNormal(tmpVertices, x, y, yMean);
+      if (i > 2) {
+        int index = solver.identifyWeakestVertex(x, y,
+            models[modelsCount].yFitted, tmpVertices,
+            models[modelsCount].slopes, recoveryThreshold);
+        tmpVertices.remove(index);
+        modelsCount++;
+      }
+    }
+    LandTrendr.LandTrendrSolver.Model bestModel =
+        solver.chooseBestModel(models, recoveryThreshold, bestModelProportion);
+    if (bestModel == null) {
+      int indexMinFStat = 0;
+      for (int i = 0; i < modelsCount; i++) {
+        if (models[i].fStat < models[indexMinFStat].fStat) {
+          indexMinFStat = i;
+        }
+      }
+      return models[indexMinFStat];
+    }
+    return bestModel;
+  }
+
+  @Test
+  public void testIdentifyBestModelMatchesModels() {
+    Random random = new Random(8);
+    for (int t = 0; t < 300; t++) {
+      // a solver reused across lengths, so its buffers are reused too.
+      int n = 12 + random.nextInt(25);
+      double[] x = years(n);
+      for (int i = 0; i < n; i++) {
+        x[i] -= 1985;
+      }
+      double[] y = disturbedSeries(random, n);
+      if (t % 3 == 0) {
+        y[random.nextInt(n)] += 300;
+      }
+      double yMean = Arrays.stream(y).average().getAsDouble();
+      List<Integer> vertices = randomVertices(random, n,
+          Math.min(n - 2, 2 + random.nextInt(7)));
+      double recoveryThreshold = random.nextBoolean() ? 0.25 : 1.0;
+
+      LandTrendr.LandTrendrSolver.Model expected = identifyBestModelWithModels(
+          x, y, yMean, vertices, recoveryThreshold, 0.75);
+      LandTrendr.LandTrendrSolver.Model actual = solver.identifyBestModel(
+          x, y, yMean, new ArrayList<>(vertices), recoveryThreshold, 0.75);
+      assertEquals(expected.vertices, actual.vertices);
+      for (int i = 0; i < expected.slopes.size(); i++) {
+        assertEquals(expected.slopes.get(i), actual.slopes.get(i), 1e-9);
+        assertEquals(expected.intercepts.get(i), actual.intercepts.get(i),
+            1e-9);
+      }
+      assertArrayEquals(expected.yFitted, actual.yFitted, 1e-9);
+      assertEquals(expected.pValue, actual.pValue, 1e-12);
+      assertEquals(expected.fStat, actual.fStat, 1e-9 * expected.fStat);
+    }
+  }
+
+  @Test
+  public void testUpdateStateMatchesFullRefit() {
+    Random random = new Random(3);
+    int numCompared = 0;
+    for (int t = 0; t < 200; t++) {
+      int n = 20 + random.nextInt(15);
+      double[] years = years(n);
+      double[] y = disturbedSeries(random, n);
+
+      LandTrendr.ModelState state = solver.getState(
+          new LandTrendr.TimeAxis(Arrays.copyOf(years, n - 1)),
+          Arrays.copyOf(y, n - 1));
+      LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+      boolean incremental = solver.updateState(state, axis, y, 3.0);
+      LandTrendr.ModelState full = solver.getState(axis, y);
+      if (!incremental) {
+        // the pixel was segmented again.
+        assertArrayEquals(full.getVertices(), state.getVertices());
+        assertArrayEquals(full.getSlopes(), state.getSlopes(), 0.0);
+        continue;
+      }
+
+      // a full fit may place the vertices differently; with the same
+      // vertices, it must fit the same segments.
+      assertEquals(n, state.getNumObservations());
+      if (Arrays.equals(full.getVertices(), state.getVertices())) {
+        assertArrayEquals(full.getSlopes(), state.getSlopes(), 1e-9);
+        assertArrayEquals(full.getIntercepts(), state.getIntercepts(), 1e-9);
+        assertEquals(full.getPValue(), state.getPValue(), 1e-12);
+        assertEquals(full.getFStat(), state.getFStat(), 1e-9);
+        numCompared++;
+      }
+    }
+    assertTrue(numCompared > 50);
+  }
+
+  @Test
+  public void testUpdateStateRefitsAfterSpike() {
+    int n = 25;
+    double[] years = years(n);
+    double[] y = new double[n];
+    for (int i = 0; i < n; i++) {
+      y[i] = 500 + (i % 2 == 0 ? 5 : -5);
+    }
+    // the previous last observation becomes a spike with the new one.
+    y[n - 2] = 900;
+    y[n - 1] = 500;
+
+    LandTrendr.ModelState state = solver.getState(
+        new LandTrendr.TimeAxis(Arrays.copyOf(years, n - 1)),
+        Arrays.copyOf(y, n - 1));
+    LandTrendr.TimeAxis axis = new LandTrendr.TimeAxis(years);
+    assertFalse(solver.updateState(state, axis, y, 100.0));
+
+    LandTrendr.ModelState full = solver.getState(axis, y);
+    assertArrayEquals(full.getVertices(), state.getVertices());
+    assertArrayEquals(full.getSlopes(), state.getSlopes(), 0.0);
+    assertArrayEquals(full.getIntercepts(), state.getIntercepts(), 0.0);
+  }
+}
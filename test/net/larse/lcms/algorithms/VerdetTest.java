@@ -1,7 +1,12 @@
 package net.larse.lcms.algorithms;
 
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import net.larse.lcms.helper.Raster;
+import net.larse.lcms.helper.RegionGrowing;
+import org.apache.commons.math.stat.regression.OLSMultipleLinearRegression;
+import org.ejml.data.DenseMatrix64F;
+import org.ejml.ops.CommonOps;
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.Driver;
 import org.gdal.gdal.gdal;
@@ -13,6 +18,7 @@ import org.junit.Test;
 
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -43,6 +49,397 @@ public class VerdetTest {
 
   }
 
+  /**
+   * Returns a band sequential tile of nBands bands of the series x, shifted
+   * to be positive, with a small offset growing along each row (and with the
+   * band), so neighbouring pixels of a row are close enough to warm start.
+   */
+  double[] tile(int width, int height, int nBands) {
+    int numPixels = width * height;
+    double[] tile = new double[nBands * x.length * numPixels];
+    for (int b = 0; b < nBands; b++) {
+      for (int i = 0; i < x.length; i++) {
+        for (int p = 0; p < numPixels; p++) {
+          double offset = 1e-4 * (p % width) + 0.01 * b;
+          tile[(b * x.length + i) * numPixels + p] =
+              0.3 + x[i] * (1 + offset) + offset;
+        }
+      }
+    }
+    return tile;
+  }
+
+  /**
+   * Returns a random positive series of the given size, with a break.
+   */
+  double[] randomSeries(Random random, int size) {
+    double[] series = new double[size];
+    int change = random.nextInt(size);
+    for (int i = 0; i < size; i++) {
+      series[i] = 0.5 + 0.02 * random.nextGaussian()
+          - (i >= change ? 0.2 * random.nextDouble() : 0);
+    }
+    return series;
+  }
+
+  /**
+   * The dense implementation of tv1DMany() that the banded one replaced,
+   * which solves (A'A + D) u = A'f with an LU decomposition at each
+   * iteration.
+   */
+  static double[] tv1DManyDense(double[] X, Verdet.Args args) {
+    int size = X.length;
+    DenseMatrix64F A = new DenseMatrix64F(size, size);
+    DenseMatrix64F AtA = new DenseMatrix64F(size, size);
+    DenseMatrix64F ataClone = new DenseMatrix64F(size, size);
+    DenseMatrix64F f = new DenseMatrix64F(size, 1);
+    DenseMatrix64F Atf = new DenseMatrix64F(size, 1);
+    DenseMatrix64F u = new DenseMatrix64F(size, 1);
+    DenseMatrix64F u1 = new DenseMatrix64F(size, 1);
+    for (int i = 0; i < size; i++) {
+      for (int j = 0; j < size; j++) {
+        A.set(j, i, i <= j ? 1.0 : 0);
+      }
+    }
+    CommonOps.multTransA(A, A, AtA);
+    System.arraycopy(AtA.data, 0, ataClone.data, 0, size * size);
+    for (int i = 0; i < size; i++) {
+      f.set(i, X[i] - X[0]);
+    }
+    CommonOps.multTransA(A, f, Atf);
+    System.arraycopy(f.data, 0, u.data, 0, size);
+    CommonOps.set(u1, Double.POSITIVE_INFINITY);
+    for (int i = 0; i < args.nRuns; i++) {
+      double prev = 0;
+      double curr = 0;
+      for (int j = 0; j < size - 1; j++) {
+        curr = args.alpha / (1e-6 + Math.abs(u.get(j + 1) - u.get(j)));
+        AtA.set(j, j, ataClone.get(j, j) + prev + curr);
+        AtA.set(j, j + 1, ataClone.get(j, j + 1) - curr);
+        AtA.set(j + 1, j, ataClone.get(j + 1, j) - curr);
+        prev = curr;
+      }
+      AtA.set(size - 1, size - 1, ataClone.get(size - 1, size - 1) + curr);
+      CommonOps.solve(AtA, Atf, u);
+      CommonOps.sub(u1, u, u1);
+      if (CommonOps.elementMaxAbs(u1) <= args.tolerance) {
+        break;
+      }
+      System.arraycopy(u.data, 0, u1.data, 0, size);
+    }
+    CommonOps.mult(A, u, u1);
+    double[] O = new double[size];
+    for (int i = 0; i < size; i++) {
+      O[i] = u1.get(i) + X[0];
+    }
+    return O;
+  }
+
+  /**
+   * The implementation of piecewiseLinear() that the tridiagonal solve
+   * replaced, which fits the knots with a dense least squares regression,
+   * starting from the total variation solution T.
+   */
+  static double[] piecewiseLinearDense(double[] B, double[] T) {
+    int size = B.length;
+    double dx = 0.005;
+    double[] T1 = new double[size];
+    int[] C = new int[size];
+    int[] cc = new int[size];
+    double[] g = new double[size];
+    OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
+    ols.setNoIntercept(true);
+    for (int run = 0; run < 100 && !Arrays.equals(T1, T); run++) {
+      System.arraycopy(T, 0, T1, 0, size);
+      Arrays.fill(C, 0);
+      C[0] = 1;
+      C[size - 1] = 1;
+      IntArrayList f = new IntArrayList();
+      f.add(0);
+      for (int i = 0; i < size - 1; i++) {
+        double dT = T[i + 1] - T[i];
+        double Q = Math.sqrt(dx + dT * dT);
+        if (i < size - 2) {
+          double forward = T[i + 2] - T[i + 1];
+          double R = 1 - (dT * forward + dx)
+              / (Q * Math.sqrt(dx + forward * forward));
+          if (R > 0.025) {
+            C[i + 1] = 1;
+            f.add(i + 1);
+          }
+        }
+        if (i > 0) {
+          cc[i] = cc[i - 1] + C[i];
+        }
+      }
+      f.add(size - 1);
+      f.add(size);
+      cc[size - 1] = cc[size - 2] + C[size - 1];
+      for (int i = 0; i < size; i++) {
+        g[i] = 1.0 * (i - f.get(cc[i])) / (f.get(cc[i] + 1) - f.get(cc[i]));
+      }
+
+      double[][] A = new double[size][cc[size - 1] + 1];
+      for (int i = 0; i < size; i++) {
+        A[i][cc[i]] = 1 - g[i];
+        if (i < size - 1) {
+          A[i][cc[i] + 1] = g[i];
+        }
+      }
+      ols.newSampleData(B, A);
+      double[] b = ols.estimateRegressionParameters();
+      T = new double[size];
+      for (int i = 0; i < size; i++) {
+        for (int j = 0; j < b.length; j++) {
+          T[i] += A[i][j] * b[j];
+        }
+      }
+    }
+    return T;
+  }
+
+  @Test
+  public void testPiecewiseLinearMatchesDenseLeastSquares() {
+    Random random = new Random(3);
+    Verdet verdet = new Verdet();
+    for (int size : new int[] {3, 5, 12, 30, 40}) {
+      verdet.init(size);
+      for (int k = 0; k < 20; k++) {
+        double[] series = randomSeries(random, size);
+        double[] T = verdet.tv1DMany(series).clone();
+        assertArrayEquals(piecewiseLinearDense(series, T),
+            verdet.piecewiseLinear(series), 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testTv1DManyMatchesDenseSolve() {
+    Random random = new Random(1);
+    Verdet.Args args = new Verdet.Args();
+    Verdet verdet = new Verdet(args);
+    for (int size : new int[] {2, 5, 12, 30, 40}) {
+      verdet.init(size);
+      for (int k = 0; k < 20; k++) {
+        double[] series = randomSeries(random, size);
+        assertArrayEquals(tv1DManyDense(series, args),
+            verdet.tv1DMany(series), 1e-6);
+      }
+    }
+    verdet.init(x.length);
+    assertArrayEquals(tv1DManyDense(x, args), verdet.tv1DMany(x), 1e-6);
+  }
+
+  @Test
+  public void testInitAcrossLengths() {
+    Random random = new Random(2);
+    Verdet verdet = new Verdet();
+    // longer and shorter series in turn reuse or replace the workspace.
+    for (int size : new int[] {30, 12, 30, 40, 12, 12, 2}) {
+      double[] series = randomSeries(random, size);
+      double[] expected = new Verdet().getResult(series.clone());
+      assertArrayEquals(expected, verdet.getResult(series.clone()), 0);
+    }
+  }
+
+  @Test
+  public void testDiagnostics() {
+    Random random = new Random(4);
+    Verdet verdet = new Verdet();
+    int numSeries = 10;
+    int[] iterations = new int[numSeries];
+    for (int k = 0; k < numSeries; k++) {
+      verdet.getResult(randomSeries(random, x.length));
+      assertTrue(verdet.isConverged() && verdet.isPiecewiseConverged());
+      iterations[k] = verdet.getIterations();
+      assertTrue(verdet.getPiecewiseIterations() >= 1);
+    }
+    int[] histogram = verdet.getIterationHistogram();
+    int total = 0;
+    for (int n = 0; n < histogram.length; n++) {
+      total += histogram[n];
+      int count = 0;
+      for (int k = 0; k < numSeries; k++) {
+        count += iterations[k] == n ? 1 : 0;
+      }
+      assertEquals(count, histogram[n]);
+    }
+    assertEquals(numSeries, total);
+    total = 0;
+    for (int count : verdet.getPiecewiseHistogram()) {
+      total += count;
+    }
+    assertEquals(numSeries, total);
+    assertEquals(0, verdet.getNumNotConverged());
+    assertEquals(0, verdet.getNumPiecewiseNotConverged());
+
+    verdet.resetDiagnostics();
+    assertArrayEquals(new int[histogram.length], verdet.getIterationHistogram());
+    assertArrayEquals(new int[verdet.getPiecewiseHistogram().length],
+        verdet.getPiecewiseHistogram());
+  }
+
+  @Test
+  public void testCapsAreDiagnosed() {
+    Verdet.Args args = new Verdet.Args();
+    args.nRuns = 1;
+    args.maxPiecewiseRuns = 1;
+    Verdet verdet = new Verdet(args);
+    verdet.getResult(x.clone());
+    assertFalse(verdet.isConverged());
+    assertEquals(1, verdet.getIterations());
+    assertFalse(verdet.isPiecewiseConverged());
+    assertEquals(1, verdet.getPiecewiseIterations());
+    assertEquals(1, verdet.getNumNotConverged());
+    assertEquals(1, verdet.getNumPiecewiseNotConverged());
+    assertEquals(1, verdet.getIterationHistogram()[1]);
+    assertEquals(1, verdet.getPiecewiseHistogram()[1]);
+
+    // the capped loops are negative in the diagnostic bands.
+    int width = 4;
+    int numPixels = width * 2;
+    double[] tile = tile(width, 2, 1);
+    int[] diagnostics = new int[2 * numPixels];
+    verdet.getResults(tile, width, 2, x.length, new double[tile.length],
+        diagnostics);
+    for (int code : diagnostics) {
+      assertEquals(-1, code);
+    }
+    int[] uncapped = new int[2 * numPixels];
+    new Verdet().getResults(tile, width, 2, x.length, new double[tile.length],
+        uncapped);
+    for (int code : uncapped) {
+      assertTrue(code > 1);
+    }
+  }
+
+  @Test
+  public void testWarmStartIsResetAtRowsAndTiles() {
+    int width = 20;
+    int height = 3;
+    int numPixels = width * height;
+    double[] tile = tile(width, height, 1);
+    Verdet.Args args = new Verdet.Args();
+    Verdet verdet = new Verdet(args);
+    verdet.setWarmStart(true);
+    double[] output = new double[tile.length];
+    int[] diagnostics = new int[2 * numPixels];
+    verdet.getResults(tile, width, height, x.length, output, diagnostics);
+    // a second call starts cold, as the first one did.
+    double[] output2 = new double[tile.length];
+    int[] diagnostics2 = new int[2 * numPixels];
+    verdet.getResults(tile, width, height, x.length, output2, diagnostics2);
+    assertArrayEquals(diagnostics, diagnostics2);
+    assertArrayEquals(output, output2, 0);
+
+    // each row gives the same results as a tile of its own.
+    double[] row = new double[x.length * width];
+    double[] rowOutput = new double[row.length];
+    int[] rowDiagnostics = new int[2 * width];
+    for (int y = 0; y < height; y++) {
+      for (int i = 0; i < x.length; i++) {
+        System.arraycopy(tile, i * numPixels + y * width, row, i * width,
+            width);
+      }
+      Verdet rowVerdet = new Verdet(args);
+      rowVerdet.setWarmStart(true);
+      rowVerdet.getResults(row, width, 1, x.length, rowOutput,
+          rowDiagnostics);
+      for (int p = 0; p < width; p++) {
+        assertEquals(rowDiagnostics[p], diagnostics[y * width + p]);
+      }
+    }
+
+    // the warm start was used within the rows.
+    Verdet cold = new Verdet(args);
+    int[] coldDiagnostics = new int[2 * numPixels];
+    cold.getResults(tile, width, height, x.length, new double[tile.length],
+        coldDiagnostics);
+    int warmIterations = 0;
+    int coldIterations = 0;
+    for (int p = 0; p < numPixels; p++) {
+      warmIterations += Math.abs(diagnostics[p]);
+      coldIterations += Math.abs(coldDiagnostics[p]);
+    }
+    assertTrue(warmIterations < coldIterations);
+  }
+
+  @Test
+  public void testBandsAreWarmStartedFromTheSameBand() {
+    int width = 10;
+    int height = 2;
+    int nBands = 3;
+    int numPixels = width * height;
+    int bandSize = x.length * numPixels;
+    double[] tile = tile(width, height, nBands);
+    Verdet.Args args = new Verdet.Args();
+    Verdet verdet = new Verdet(args);
+    verdet.setWarmStart(true);
+    double[] output = new double[tile.length];
+    int[] diagnostics = new int[2 * nBands * numPixels];
+    verdet.getResults(tile, width, height, nBands, x.length, output,
+        diagnostics);
+
+    // each band gives the same results as a tile of its own.
+    double[] band = new double[bandSize];
+    double[] bandOutput = new double[bandSize];
+    int[] bandDiagnostics = new int[2 * numPixels];
+    for (int b = 0; b < nBands; b++) {
+      System.arraycopy(tile, b * bandSize, band, 0, bandSize);
+      Verdet bandVerdet = new Verdet(args);
+      bandVerdet.setWarmStart(true);
+      bandVerdet.getResults(band, width, height, x.length, bandOutput,
+          bandDiagnostics);
+      for (int i = 0; i < bandSize; i++) {
+        assertEquals(bandOutput[i], output[b * bandSize + i], 0);
+      }
+      for (int p = 0; p < numPixels; p++) {
+        assertEquals(bandDiagnostics[p], diagnostics[2 * b * numPixels + p]);
+      }
+    }
+  }
+
+  @Test
+  public void testSegmentsGetTheScoresOfTheirMeanSeries() {
+    int nBands = 2;
+    Verdet.Args args = new Verdet.Args();
+    args.maxSegmentPixels = 4;
+    args.segmentThreshold = 0.01;
+    Verdet verdet = new Verdet(args);
+    verdet.setWarmStart(true);
+    // a larger tile first, so the second one reuses larger buffers.
+    verdet.getResults(tile(12, 4, nBands), 12, 4, nBands, x.length,
+        new double[12 * 4 * nBands * x.length], null);
+
+    int width = 8;
+    int height = 3;
+    int numPixels = width * height;
+    double[] tile = tile(width, height, nBands);
+    double[] output = new double[tile.length];
+    int numScored = verdet.getResults(tile, width, height, nBands, x.length,
+        output, null);
+
+    RegionGrowing segmentation =
+        new RegionGrowing(args.segmentThreshold, args.maxSegmentPixels);
+    int numSegments =
+        segmentation.segment(tile, width, height, nBands * x.length);
+    assertEquals(numSegments * nBands, numScored);
+    assertTrue(numSegments < numPixels);
+    double[] mean = new double[nBands * x.length];
+    Verdet reference = new Verdet(new Verdet.Args());
+    for (int p = 0; p < numPixels; p++) {
+      segmentation.getMean(segmentation.getLabel(p), mean);
+      for (int b = 0; b < nBands; b++) {
+        double[] expected = reference.getResult(
+            Arrays.copyOfRange(mean, b * x.length, (b + 1) * x.length));
+        for (int i = 0; i < x.length; i++) {
+          assertEquals(expected[i],
+              output[(b * x.length + i) * numPixels + p], 1e-9);
+        }
+      }
+    }
+  }
+
   @Ignore
   @Test
   public void testGetResult() throws Exception {
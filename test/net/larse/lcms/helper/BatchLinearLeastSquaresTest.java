@@ -0,0 +1,108 @@
+package net.larse.lcms.helper;
+
+import com.google.earthengine.lib.common.LinearLeastSquares;
+import org.ejml.data.DenseMatrix64F;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BatchLinearLeastSquaresTest {
+  static final int NUM_X = 3;
+  static final int NUM_Y = 2;
+  static final int NUM_REGRESSIONS = 37;
+
+  @Test
+  public void testMatchesLinearLeastSquares() {
+    Random random = new Random(1);
+    BatchLinearLeastSquares batch =
+        new BatchLinearLeastSquares(NUM_X, NUM_Y, NUM_REGRESSIONS);
+    LinearLeastSquares[] solvers = new LinearLeastSquares[NUM_REGRESSIONS];
+    for (int r = 0; r < NUM_REGRESSIONS; r++) {
+      solvers[r] = new LinearLeastSquares(NUM_X, NUM_Y);
+    }
+
+    // observations shared by all the regressions (e.g. the harmonic terms of
+    // a date), with a random weight per regression, 0 for some.
+    double[] x = new double[NUM_X];
+    double[] y = new double[NUM_Y * NUM_REGRESSIONS];
+    double[] weights = new double[NUM_REGRESSIONS];
+    double[] yr = new double[NUM_Y];
+    for (int t = 0; t < 20; t++) {
+      x[0] = 1;
+      x[1] = Math.sin(t);
+      x[2] = Math.cos(t);
+      for (int r = 0; r < NUM_REGRESSIONS; r++) {
+        weights[r] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 2;
+        for (int j = 0; j < NUM_Y; j++) {
+          y[j * NUM_REGRESSIONS + r] = r + j * x[1] + random.nextGaussian();
+          yr[j] = y[j * NUM_REGRESSIONS + r];
+        }
+        // every other input is unweighted, i.e. has a weight of 1.
+        solvers[r].addInput(x, 0, yr, 0, t % 2 == 0 ? weights[r] : 1);
+      }
+      batch.addInputs(x, 0, y, 0, t % 2 == 0 ? weights : null);
+    }
+    // and one more input of a single regression.
+    double[] input = {1, 0.5, -0.5, 7, 8};
+    batch.addInput(3, input, 0, input, NUM_X, 3.0);
+    solvers[3].addInput(input, 0, input, NUM_X, 3.0);
+
+    double[] results = new double[NUM_X * NUM_Y * NUM_REGRESSIONS];
+    double[] residuals = new double[NUM_Y * NUM_REGRESSIONS];
+    boolean[] solved = new boolean[NUM_REGRESSIONS];
+    assertEquals(NUM_REGRESSIONS, batch.getSolutions(results, residuals, solved));
+    DenseMatrix64F expected = new DenseMatrix64F(NUM_X, NUM_Y);
+    double[] expectedResiduals = new double[NUM_Y];
+    for (int r = 0; r < NUM_REGRESSIONS; r++) {
+      assertTrue(solved[r]);
+      assertTrue(solvers[r].getSolution(expected));
+      solvers[r].getRmsResiduals(expected, expectedResiduals);
+      for (int i = 0; i < NUM_X; i++) {
+        for (int j = 0; j < NUM_Y; j++) {
+          assertEquals(expected.get(i, j),
+              results[(i * NUM_Y + j) * NUM_REGRESSIONS + r], 1e-9);
+        }
+      }
+      for (int j = 0; j < NUM_Y; j++) {
+        assertEquals(expectedResiduals[j],
+            residuals[j * NUM_REGRESSIONS + r], 1e-9);
+      }
+    }
+  }
+
+  @Test
+  public void testUnsolvedRegressions() {
+    BatchLinearLeastSquares batch = new BatchLinearLeastSquares(NUM_X, NUM_Y, 3);
+    // regression 0 gets 3 independent inputs, regression 1 only 2, and
+    // regression 2 three inputs with the same x.
+    double[][] inputs = {{1, 0, 0, 1, 2}, {1, 1, 0, 3, 4}, {1, 0, 1, 5, 6}};
+    for (double[] input : inputs) {
+      batch.addInput(0, input, 0, input, NUM_X);
+      batch.addInput(2, inputs[0], 0, input, NUM_X);
+    }
+    batch.addInput(1, inputs[0], 0, inputs[0], NUM_X);
+    batch.addInput(1, inputs[1], 0, inputs[1], NUM_X);
+
+    double[] results = new double[NUM_X * NUM_Y * 3];
+    double[] residuals = new double[NUM_Y * 3];
+    boolean[] solved = new boolean[3];
+    assertEquals(1, batch.getSolutions(results, residuals, solved));
+    assertTrue(solved[0]);
+    assertFalse(solved[1]);
+    assertFalse(solved[2]);
+    // the inputs of regression 0 are fitted exactly.
+    assertEquals(1, results[0], 1e-12);
+    assertEquals(2, results[(NUM_Y + 0) * 3], 1e-12);
+    assertEquals(4, results[(2 * NUM_Y + 0) * 3], 1e-12);
+    assertEquals(0, residuals[0], 1e-12);
+    for (int k = 0; k < NUM_X * NUM_Y; k++) {
+      assertTrue(Double.isNaN(results[k * 3 + 1]));
+      assertTrue(Double.isNaN(results[k * 3 + 2]));
+    }
+
+    batch.reset();
+    assertEquals(0, batch.getSolutions(results, null, solved));
+  }
+}
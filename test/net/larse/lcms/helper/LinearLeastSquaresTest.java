@@ -0,0 +1,386 @@
+package com.google.earthengine.lib.common;
+
+import org.ejml.data.DenseMatrix64F;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamConstants;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LinearLeastSquaresTest {
+  static final int NUM_X = 3;
+  static final int NUM_Y = 2;
+
+  /**
+   * Returns numInputs random inputs of NUM_X x values (the first one being
+   * 1) followed by NUM_Y y values, one per row.
+   */
+  static double[][] inputs(Random random, int numInputs) {
+    double[][] inputs = new double[numInputs][NUM_X + NUM_Y];
+    for (double[] input : inputs) {
+      input[0] = 1;
+      for (int i = 1; i < NUM_X; i++) {
+        input[i] = random.nextDouble() * 10;
+      }
+      for (int j = 0; j < NUM_Y; j++) {
+        input[NUM_X + j] = 2 + (j + 1) * input[1] - 0.5 * input[2]
+            + random.nextGaussian();
+      }
+    }
+    return inputs;
+  }
+
+  static LinearLeastSquares solverOf(double[][] inputs, int from, int to,
+      LinearLeastSquares.Mode mode) {
+    LinearLeastSquares solver = new LinearLeastSquares(NUM_X, NUM_Y, mode);
+    for (int i = from; i < to; i++) {
+      solver.addInput(inputs[i], 0, inputs[i], NUM_X);
+    }
+    return solver;
+  }
+
+  static DenseMatrix64F solve(LinearLeastSquares solver) {
+    DenseMatrix64F results = new DenseMatrix64F(NUM_X, NUM_Y);
+    assertTrue(solver.getSolution(results));
+    return results;
+  }
+
+  static void assertSameSolution(DenseMatrix64F expected,
+      DenseMatrix64F actual, double tolerance) {
+    for (int i = 0; i < NUM_X; i++) {
+      for (int j = 0; j < NUM_Y; j++) {
+        assertEquals(expected.get(i, j), actual.get(i, j), tolerance);
+      }
+    }
+  }
+
+  @Test
+  public void testRemoveInputs() {
+    double[][] inputs = inputs(new Random(1), 40);
+    LinearLeastSquares.Mode mode = LinearLeastSquares.Mode.NORMAL_EQUATIONS;
+    DenseMatrix64F expected = solve(solverOf(inputs, 10, 40, mode));
+
+    LinearLeastSquares solver = solverOf(inputs, 0, 40, mode);
+    for (int i = 0; i < 5; i++) {
+      solver.removeInput(inputs[i], 0, inputs[i], NUM_X);
+    }
+    solver.subtractInputsOf(solverOf(inputs, 5, 10, mode));
+    assertSameSolution(expected, solve(solver), 1e-9);
+
+    // removing every input resets the solver.
+    solver.subtractInputsOf(solverOf(inputs, 10, 40, mode));
+    assertFalse(solver.getSolution(new DenseMatrix64F(NUM_X, NUM_Y)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSubtractInputsOfOtherMode() {
+    double[][] inputs = inputs(new Random(2), 10);
+    LinearLeastSquares solver = solverOf(inputs, 0, 10,
+        LinearLeastSquares.Mode.NORMAL_EQUATIONS);
+    solver.subtractInputsOf(
+        solverOf(inputs, 0, 5, LinearLeastSquares.Mode.GIVENS_QR));
+  }
+
+  @Test
+  public void testQrMatchesNormalEquations() {
+    double[][] inputs = inputs(new Random(3), 40);
+    LinearLeastSquares normal = solverOf(inputs, 0, 40,
+        LinearLeastSquares.Mode.NORMAL_EQUATIONS);
+    DenseMatrix64F expected = solve(normal);
+    double[] expectedResiduals = new double[NUM_Y];
+    normal.getRmsResiduals(expected, expectedResiduals);
+
+    LinearLeastSquares qr =
+        solverOf(inputs, 0, 40, LinearLeastSquares.Mode.GIVENS_QR);
+    LinearLeastSquares merged =
+        solverOf(inputs, 0, 15, LinearLeastSquares.Mode.GIVENS_QR);
+    merged.addInputsOf(
+        solverOf(inputs, 15, 40, LinearLeastSquares.Mode.GIVENS_QR));
+    for (LinearLeastSquares solver : new LinearLeastSquares[] {qr, merged}) {
+      DenseMatrix64F results = solve(solver);
+      assertSameSolution(expected, results, 1e-9);
+      double[] residuals = new double[NUM_Y];
+      solver.getRmsResiduals(results, residuals);
+      assertArrayEquals(expectedResiduals, residuals, 1e-9);
+    }
+  }
+
+  @Test
+  public void testQrWithUncenteredYears() {
+    // a quadratic trend over years used as is, whose normal equations have
+    // a condition number far beyond double precision.
+    Random random = new Random(9);
+    double mid = 2004;
+    double[] truth = {500, -3, 0.25};
+    LinearLeastSquares qr =
+        new LinearLeastSquares(NUM_X, NUM_Y, LinearLeastSquares.Mode.GIVENS_QR);
+    LinearLeastSquares centered = new LinearLeastSquares(NUM_X, NUM_Y);
+    for (int year = 1984; year <= 2024; year++) {
+      double t = year - mid;
+      double[] y = new double[NUM_Y];
+      for (int j = 0; j < NUM_Y; j++) {
+        y[j] = truth[0] + (j + 1) * (truth[1] * t + truth[2] * t * t)
+            + random.nextGaussian();
+      }
+      qr.addInput(new double[] {1, year, (double) year * year}, 0, y, 0);
+      centered.addInput(new double[] {1, t, t * t}, 0, y, 0);
+    }
+
+    // the reference is the fit on centered years, expanded back to powers
+    // of the years.
+    DenseMatrix64F reference = solve(centered);
+    DenseMatrix64F results = solve(qr);
+    for (int j = 0; j < NUM_Y; j++) {
+      double a = reference.get(0, j);
+      double b = reference.get(1, j);
+      double c = reference.get(2, j);
+      double[] expected = {a - b * mid + c * mid * mid, b - 2 * c * mid, c};
+      for (int i = 0; i < NUM_X; i++) {
+        assertEquals(expected[i], results.get(i, j),
+            1e-9 * Math.abs(expected[i]));
+      }
+    }
+    double[] expectedResiduals = new double[NUM_Y];
+    centered.getRmsResiduals(reference, expectedResiduals);
+    double[] residuals = new double[NUM_Y];
+    qr.getRmsResiduals(results, residuals);
+    assertArrayEquals(expectedResiduals, residuals, 1e-6);
+  }
+
+  @Test
+  public void testAddInputsOfItself() {
+    double[][] inputs = inputs(new Random(4), 20);
+    for (LinearLeastSquares.Mode mode : LinearLeastSquares.Mode.values()) {
+      // adding a solver to itself is adding each of its inputs twice.
+      LinearLeastSquares twice = solverOf(inputs, 0, 20, mode);
+      for (double[] input : inputs) {
+        twice.addInput(input, 0, input, NUM_X);
+      }
+      DenseMatrix64F expected = solve(twice);
+      double[] expectedResiduals = new double[NUM_Y];
+      twice.getRmsResiduals(expected, expectedResiduals);
+
+      LinearLeastSquares solver = solverOf(inputs, 0, 20, mode);
+      solver.addInputsOf(solver);
+      DenseMatrix64F results = solve(solver);
+      assertSameSolution(expected, results, 1e-9);
+      double[] residuals = new double[NUM_Y];
+      solver.getRmsResiduals(results, residuals);
+      assertArrayEquals(expectedResiduals, residuals, 1e-9);
+    }
+  }
+
+  @Test
+  public void testWeightsAreRepeatedInputs() {
+    double[][] inputs = inputs(new Random(5), 30);
+    for (LinearLeastSquares.Mode mode : LinearLeastSquares.Mode.values()) {
+      // input i is given i % 3 times, or a weight of i % 3.
+      LinearLeastSquares repeated = new LinearLeastSquares(NUM_X, NUM_Y, mode);
+      LinearLeastSquares weighted = new LinearLeastSquares(NUM_X, NUM_Y, mode);
+      for (int i = 0; i < inputs.length; i++) {
+        for (int k = 0; k < i % 3; k++) {
+          repeated.addInput(inputs[i], 0, inputs[i], NUM_X);
+        }
+        weighted.addInput(inputs[i], 0, inputs[i], NUM_X, i % 3);
+      }
+      DenseMatrix64F expected = solve(repeated);
+      double[] expectedResiduals = new double[NUM_Y];
+      repeated.getRmsResiduals(expected, expectedResiduals);
+
+      DenseMatrix64F results = solve(weighted);
+      assertSameSolution(expected, results, 1e-9);
+      double[] residuals = new double[NUM_Y];
+      weighted.getRmsResiduals(results, residuals);
+      assertArrayEquals(expectedResiduals, residuals, 1e-9);
+    }
+
+    // removing a weighted input takes its weight out.
+    LinearLeastSquares solver = solverOf(inputs, 0, 30,
+        LinearLeastSquares.Mode.NORMAL_EQUATIONS);
+    solver.addInput(inputs[0], 0, inputs[0], NUM_X, 2.5);
+    solver.removeInput(inputs[0], 0, inputs[0], NUM_X, 2.5);
+    assertSameSolution(solve(solverOf(inputs, 0, 30,
+        LinearLeastSquares.Mode.NORMAL_EQUATIONS)), solve(solver), 1e-9);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeWeight() {
+    new LinearLeastSquares(NUM_X, NUM_Y).addInput(
+        new double[] {1, 2, 3}, 0, new double[] {4, 5}, 0, -1);
+  }
+
+  @Test
+  public void testEncodeAndMerge() {
+    double[][] inputs = inputs(new Random(6), 30);
+    LinearLeastSquares.Mode mode = LinearLeastSquares.Mode.NORMAL_EQUATIONS;
+    LinearLeastSquares all = solverOf(inputs, 0, 30, mode);
+    DenseMatrix64F expected = solve(all);
+
+    LinearLeastSquares first = solverOf(inputs, 0, 10, mode);
+    LinearLeastSquares second = solverOf(inputs, 10, 30, mode);
+    byte[] encoded = second.encode();
+    assertEquals(LinearLeastSquares.encodedSize(NUM_X, NUM_Y), encoded.length);
+
+    // decoded, added to a solver, or merged into another encoded state.
+    LinearLeastSquares decoded = LinearLeastSquares.decode(
+        ByteBuffer.wrap(encoded));
+    assertSameSolution(solve(second), solve(decoded), 0.0);
+    decoded.addInputsOf(first);
+    assertSameSolution(expected, solve(decoded), 1e-9);
+
+    ByteBuffer buffer = ByteBuffer.wrap(encoded);
+    first.addInputsOf(buffer);
+    assertEquals(encoded.length, buffer.position());
+    assertSameSolution(expected, solve(first), 1e-9);
+
+    // two states in a little endian buffer, merged into the first one.
+    ByteBuffer states = ByteBuffer.allocate(2 * encoded.length)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    solverOf(inputs, 0, 10, mode).encode(states);
+    second.encode(states);
+    states.position(encoded.length);
+    ByteBuffer src = states.slice().order(ByteOrder.LITTLE_ENDIAN);
+    states.position(0);
+    LinearLeastSquares.mergeEncoded(states, src);
+    assertEquals(0, states.position());
+    LinearLeastSquares merged = LinearLeastSquares.decode(states);
+    assertSameSolution(expected, solve(merged), 1e-9);
+    double[] expectedResiduals = new double[NUM_Y];
+    all.getRmsResiduals(expected, expectedResiduals);
+    double[] residuals = new double[NUM_Y];
+    merged.getRmsResiduals(solve(merged), residuals);
+    assertArrayEquals(expectedResiduals, residuals, 1e-9);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeOtherDimensions() {
+    LinearLeastSquares solver = new LinearLeastSquares(NUM_X, NUM_Y);
+    solver.addInputsOf(
+        ByteBuffer.wrap(new LinearLeastSquares(NUM_X, NUM_Y + 1).encode()));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testEncodeQr() {
+    new LinearLeastSquares(NUM_X, NUM_Y, LinearLeastSquares.Mode.GIVENS_QR)
+        .encode();
+  }
+
+  static LinearLeastSquares deserialize(byte[] bytes)
+      throws IOException, ClassNotFoundException {
+    ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(bytes));
+    return (LinearLeastSquares) in.readObject();
+  }
+
+  /**
+   * Returns the serialized form of a solver with the given state as it was
+   * written before sumWeights and mode were added: numInputs, numX and numY,
+   * then xSums, y2Sums and ySums.
+   */
+  static byte[] serializeWithoutWeightsAndMode(int numInputs,
+      double[] xSums, double[] ySums, double[] y2Sums) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeShort(ObjectStreamConstants.STREAM_MAGIC);
+    out.writeShort(ObjectStreamConstants.STREAM_VERSION);
+    out.writeByte(ObjectStreamConstants.TC_OBJECT);
+    out.writeByte(ObjectStreamConstants.TC_CLASSDESC);
+    out.writeUTF(LinearLeastSquares.class.getName());
+    out.writeLong(1);
+    out.writeByte(ObjectStreamConstants.SC_SERIALIZABLE);
+    out.writeShort(6);
+    for (String name : new String[] {"numInputs", "numX", "numY"}) {
+      out.writeByte('I');
+      out.writeUTF(name);
+    }
+    for (String name : new String[] {"xSums", "y2Sums", "ySums"}) {
+      out.writeByte('[');
+      out.writeUTF(name);
+      out.writeByte(ObjectStreamConstants.TC_STRING);
+      out.writeUTF("[D");
+    }
+    out.writeByte(ObjectStreamConstants.TC_ENDBLOCKDATA);
+    out.writeByte(ObjectStreamConstants.TC_NULL);
+    out.writeInt(numInputs);
+    out.writeInt(NUM_X);
+    out.writeInt(NUM_Y);
+    for (double[] sums : new double[][] {xSums, y2Sums, ySums}) {
+      out.writeByte(ObjectStreamConstants.TC_ARRAY);
+      out.writeByte(ObjectStreamConstants.TC_CLASSDESC);
+      out.writeUTF("[D");
+      out.writeLong(
+          ObjectStreamClass.lookup(double[].class).getSerialVersionUID());
+      out.writeByte(ObjectStreamConstants.SC_SERIALIZABLE);
+      out.writeShort(0);
+      out.writeByte(ObjectStreamConstants.TC_ENDBLOCKDATA);
+      out.writeByte(ObjectStreamConstants.TC_NULL);
+      out.writeInt(sums.length);
+      for (double value : sums) {
+        out.writeDouble(value);
+      }
+    }
+    out.close();
+    return bytes.toByteArray();
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    double[][] inputs = inputs(new Random(7), 20);
+    for (LinearLeastSquares.Mode mode : LinearLeastSquares.Mode.values()) {
+      LinearLeastSquares solver = new LinearLeastSquares(NUM_X, NUM_Y, mode);
+      for (int i = 0; i < inputs.length; i++) {
+        solver.addInput(inputs[i], 0, inputs[i], NUM_X, 0.5 + i % 3);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      ObjectOutputStream out = new ObjectOutputStream(bytes);
+      out.writeObject(solver);
+      out.close();
+      LinearLeastSquares copy = deserialize(bytes.toByteArray());
+      assertEquals(mode, copy.mode);
+      DenseMatrix64F expected = solve(solver);
+      assertSameSolution(expected, solve(copy), 0);
+      double[] expectedResiduals = new double[NUM_Y];
+      solver.getRmsResiduals(expected, expectedResiduals);
+      double[] residuals = new double[NUM_Y];
+      copy.getRmsResiduals(expected, residuals);
+      assertArrayEquals(expectedResiduals, residuals, 0);
+    }
+  }
+
+  @Test
+  public void testDeserializeWithoutWeightsAndMode() throws Exception {
+    double[][] inputs = inputs(new Random(8), 20);
+    LinearLeastSquares solver =
+        solverOf(inputs, 0, 20, LinearLeastSquares.Mode.NORMAL_EQUATIONS);
+    // the sums, in the layout of encode().
+    ByteBuffer encoded = ByteBuffer.wrap(solver.encode());
+    encoded.position(24);
+    double[] xSums = new double[NUM_X * (NUM_X + 1) / 2];
+    double[] ySums = new double[NUM_X * NUM_Y];
+    double[] y2Sums = new double[NUM_Y];
+    encoded.asDoubleBuffer().get(xSums).get(ySums).get(y2Sums);
+
+    LinearLeastSquares old = deserialize(
+        serializeWithoutWeightsAndMode(20, xSums, ySums, y2Sums));
+    assertEquals(LinearLeastSquares.Mode.NORMAL_EQUATIONS, old.mode);
+    DenseMatrix64F expected = solve(solver);
+    assertSameSolution(expected, solve(old), 0);
+    double[] expectedResiduals = new double[NUM_Y];
+    solver.getRmsResiduals(expected, expectedResiduals);
+    double[] residuals = new double[NUM_Y];
+    old.getRmsResiduals(expected, residuals);
+    assertArrayEquals(expectedResiduals, residuals, 0);
+    // and it can be merged with a new solver.
+    old.addInputsOf(new LinearLeastSquares(NUM_X, NUM_Y));
+  }
+}
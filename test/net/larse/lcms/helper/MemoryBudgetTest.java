@@ -0,0 +1,93 @@
+package net.larse.lcms.helper;
+
+import com.google.earthengine.lib.common.LinearLeastSquares;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class MemoryBudgetTest {
+  @Test
+  public void testTileSizing() {
+    MemoryBudget budget = new MemoryBudget(10000);
+    // 4 workers of 500 bytes plus 10 bytes per pixel: (2500 - 500) / 10.
+    assertEquals(200, budget.getTilePixels(10, 500, 4, 1000));
+    assertEquals(50, budget.getTilePixels(10, 500, 4, 50));
+    assertEquals(14, budget.getTileSide(10, 500, 4, 100));
+    assertEquals(5, budget.getTileSide(10, 500, 4, 5));
+    // the chosen tiles fit in the budget, one more pixel does not.
+    int pixels = budget.getTilePixels(10, 500, 4, 1000);
+    assertTrue(4 * MemoryBudget.getWorkerSize(10, 500, pixels) <= 10000);
+    assertTrue(4 * MemoryBudget.getWorkerSize(10, 500, pixels + 1) > 10000);
+
+    assertEquals(4, budget.getNumWorkers(10, 500, 200, 8));
+    assertEquals(3, budget.getNumWorkers(10, 500, 200, 3));
+    // at least one worker, even if it does not fit.
+    assertEquals(1, budget.getNumWorkers(10, 500, 10000, 8));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTileSizingDoesNotFit() {
+    new MemoryBudget(1000).getTilePixels(10, 500, 2, 1000);
+  }
+
+  @Test
+  public void testAcquireAndRelease() throws InterruptedException {
+    MemoryBudget budget = new MemoryBudget(1000);
+    budget.acquire(600);
+    assertEquals(400, budget.getAvailable());
+    assertFalse(budget.tryAcquire(500));
+    assertTrue(budget.tryAcquire(400));
+    assertEquals(0, budget.getAvailable());
+    budget.release(1000);
+    assertEquals(1000, budget.getAvailable());
+
+    LinearLeastSquares solver = new LinearLeastSquares(3, 2);
+    assertEquals(solver.heapSize(), budget.acquire(solver));
+    assertEquals(1000 - solver.heapSize(), budget.getAvailable());
+    budget.release(solver.heapSize());
+  }
+
+  @Test
+  public void testAcquireBlocksUntilReleased() throws InterruptedException {
+    final MemoryBudget budget = new MemoryBudget(1000);
+    budget.acquire(800);
+    final AtomicBoolean acquired = new AtomicBoolean();
+    final CountDownLatch done = new CountDownLatch(1);
+    Thread worker = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          budget.acquire(500);
+          acquired.set(true);
+        } catch (InterruptedException e) {
+          // The test fails below.
+        }
+        done.countDown();
+      }
+    });
+    worker.start();
+    assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+    assertFalse(acquired.get());
+
+    budget.release(800);
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertTrue(acquired.get());
+    assertEquals(500, budget.getAvailable());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testAcquireMoreThanBudget() throws InterruptedException {
+    new MemoryBudget(1000).acquire(1001);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReleaseMoreThanAcquired() {
+    MemoryBudget budget = new MemoryBudget(1000);
+    budget.tryAcquire(100);
+    budget.release(200);
+  }
+}
@@ -0,0 +1,197 @@
+package net.larse.lcms.helper;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RegionGrowingTest {
+  /**
+   * Returns a band sequential tile of nObs observations whose pixel p has
+   * the series value[p] + i * 0.01.
+   */
+  static double[] tile(double[] value, int nObs) {
+    double[] tile = new double[value.length * nObs];
+    for (int i = 0; i < nObs; i++) {
+      for (int p = 0; p < value.length; p++) {
+        tile[i * value.length + p] = value[p] + i * 0.01;
+      }
+    }
+    return tile;
+  }
+
+  /**
+   * Returns the number of pixels of the given segment that are 4-connected
+   * to its first pixel within the segment.
+   */
+  static int connectedPixels(RegionGrowing segmentation, int width, int height,
+      int segment) {
+    boolean[] visited = new boolean[width * height];
+    int[] stack = new int[width * height];
+    int top = 0;
+    for (int p = 0; p < width * height && top == 0; p++) {
+      if (segmentation.getLabel(p) == segment) {
+        visited[p] = true;
+        stack[top++] = p;
+      }
+    }
+    int count = 0;
+    while (top > 0) {
+      int p = stack[--top];
+      count++;
+      int[] neighbours = {p % width > 0 ? p - 1 : -1,
+          p % width < width - 1 ? p + 1 : -1, p - width, p + width};
+      for (int q : neighbours) {
+        if (q >= 0 && q < width * height && !visited[q]
+            && segmentation.getLabel(q) == segment) {
+          visited[q] = true;
+          stack[top++] = q;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testIdenticalSeries() {
+    // two halves of a 4 x 2 tile, and a checkerboard of the same two
+    // series, whose equal pixels are not 4-connected.
+    double[] halves = {1, 1, 2, 2, 1, 1, 2, 2};
+    double[] checkerboard = {1, 2, 1, 2, 2, 1, 2, 1};
+    RegionGrowing segmentation = new RegionGrowing(0, 100);
+    assertEquals(2, segmentation.segment(tile(halves, 3), 4, 2, 3));
+    assertEquals(2, segmentation.getNumSegments());
+    int[] expectedLabels = {0, 0, 1, 1, 0, 0, 1, 1};
+    for (int p = 0; p < halves.length; p++) {
+      assertEquals(expectedLabels[p], segmentation.getLabel(p));
+    }
+    double[] mean = new double[3];
+    segmentation.getMean(1, mean);
+    assertArrayEquals(new double[] {2, 2.01, 2.02}, mean, 1e-12);
+
+    assertEquals(8, segmentation.segment(tile(checkerboard, 3), 4, 2, 3));
+    for (int p = 0; p < checkerboard.length; p++) {
+      assertEquals(p, segmentation.getLabel(p));
+    }
+  }
+
+  @Test
+  public void testThreshold() {
+    // the series of the pixels differ from the first one by 0.05 and 0.2 at
+    // every observation, i.e. by a root mean square difference of 0.05 and
+    // 0.2.
+    double[] value = {1, 1.05, 1.2};
+    RegionGrowing segmentation = new RegionGrowing(0.1, 100);
+    assertEquals(2, segmentation.segment(tile(value, 4), 3, 1, 4));
+    assertEquals(0, segmentation.getLabel(0));
+    assertEquals(0, segmentation.getLabel(1));
+    assertEquals(1, segmentation.getLabel(2));
+    double[] mean = new double[4];
+    segmentation.getMean(0, mean);
+    assertEquals(1.025, mean[0], 1e-12);
+
+    assertEquals(1, new RegionGrowing(0.2, 100).segment(tile(value, 4), 3, 1, 4));
+    assertEquals(3, new RegionGrowing(0.01, 100).segment(tile(value, 4), 3, 1, 4));
+  }
+
+  @Test
+  public void testNonFiniteSeries() {
+    // a 3 x 3 tile of identical series, with a masked pixel in the middle
+    // and an infinite observation in a corner.
+    double[] value = new double[9];
+    double[] tile = tile(value, 3);
+    tile[4] = Double.NaN;
+    tile[2 * 9 + 8] = Double.POSITIVE_INFINITY;
+    RegionGrowing segmentation = new RegionGrowing(1, 100);
+    assertEquals(3, segmentation.segment(tile, 3, 3, 3));
+    for (int p = 0; p < 9; p++) {
+      int expected = p == 4 ? 1 : p == 8 ? 2 : 0;
+      assertEquals(expected, segmentation.getLabel(p));
+    }
+    // the other pixels keep a finite mean.
+    double[] mean = new double[3];
+    segmentation.getMean(0, mean);
+    assertArrayEquals(new double[] {0, 0.01, 0.02}, mean, 1e-12);
+
+    // nor does a masked first pixel grow a segment.
+    tile[4] = 0;
+    tile[0] = Double.NaN;
+    assertEquals(3, segmentation.segment(tile, 3, 3, 3));
+    assertEquals(0, segmentation.getLabel(0));
+    assertEquals(1, segmentation.getLabel(1));
+    assertEquals(1, segmentation.getLabel(4));
+    assertEquals(2, segmentation.getLabel(8));
+    segmentation.getMean(0, mean);
+    assertTrue(Double.isNaN(mean[0]));
+  }
+
+  @Test
+  public void testMaxPixels() {
+    int width = 5;
+    int height = 4;
+    double[] value = new double[width * height];
+    RegionGrowing segmentation = new RegionGrowing(0, 3);
+    int numSegments = segmentation.segment(tile(value, 2), width, height, 2);
+    int[] sizes = new int[numSegments];
+    for (int p = 0; p < value.length; p++) {
+      sizes[segmentation.getLabel(p)]++;
+    }
+    for (int size : sizes) {
+      assertTrue(size >= 1 && size <= 3);
+    }
+    assertTrue(numSegments >= 7);
+    // one pixel per segment scores each pixel on its own.
+    assertEquals(value.length,
+        new RegionGrowing(0, 1).segment(tile(value, 2), width, height, 2));
+  }
+
+  @Test
+  public void testSegmentsAreConnectedWithTheirMeans() {
+    Random random = new Random(1);
+    int width = 12;
+    int height = 9;
+    int nObs = 5;
+    int numPixels = width * height;
+    double[] value = new double[numPixels];
+    for (int p = 0; p < numPixels; p++) {
+      value[p] = (p % width < 6 ? 0 : 1) + 0.02 * random.nextGaussian();
+    }
+    double[] tile = tile(value, nObs);
+    RegionGrowing segmentation = new RegionGrowing(0.05, 10);
+    // a larger tile first, so the arrays are reused.
+    segmentation.segment(new double[2 * tile.length], 2 * width, height, nObs);
+    int numSegments = segmentation.segment(tile, width, height, nObs);
+    assertTrue(numSegments > 1 && numSegments < numPixels);
+
+    double[] sums = new double[numSegments * nObs];
+    int[] counts = new int[numSegments];
+    for (int p = 0; p < numPixels; p++) {
+      int segment = segmentation.getLabel(p);
+      counts[segment]++;
+      for (int i = 0; i < nObs; i++) {
+        sums[segment * nObs + i] += tile[i * numPixels + p];
+      }
+    }
+    double[] mean = new double[nObs];
+    for (int segment = 0; segment < numSegments; segment++) {
+      assertTrue(counts[segment] >= 1 && counts[segment] <= 10);
+      segmentation.getMean(segment, mean);
+      for (int i = 0; i < nObs; i++) {
+        assertEquals(sums[segment * nObs + i] / counts[segment], mean[i],
+            1e-12);
+      }
+      assertEquals(counts[segment],
+          connectedPixels(segmentation, width, height, segment));
+    }
+    // the two halves of the tile are never in the same segment.
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < 6; x++) {
+        for (int x2 = 6; x2 < width; x2++) {
+          assertTrue(segmentation.getLabel(y * width + x)
+              != segmentation.getLabel(y * width + x2));
+        }
+      }
+    }
+  }
+}